@@ -0,0 +1,214 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Progress of decoding a patch at a window boundary, from which an interrupted decoding can be
+ * resumed by {@link VcdiffDecoder#resume(Checkpoint)}.
+ * Holds where the next window starts in patch and target, a fingerprint of the patch for checking
+ * the checkpoint is of the patch resumed: header settings, patch length and adler32 of patch data
+ * before the next window, and adler32 of target data written.
+ *
+ * @author dongliu
+ */
+public class Checkpoint {
+
+    private static final int MAGIC = 0x76636b70;
+    private static final int VERSION = 2;
+
+    private static final int ADLER_BASE = 65521;
+
+    private final long patchOffset;
+    private final long targetOffset;
+    private final int windowCount;
+
+    private final int headerLength;
+    private final int nearSize;
+    private final int sameSize;
+    private final int secondaryCompressorId;
+
+    /** length of patch, -1 if not known. */
+    private final long patchLength;
+    /** adler32 of patch data before patchOffset. */
+    private final long patchChecksum;
+
+    /** adler32 of target data before targetOffset. */
+    private final long targetChecksum;
+
+    Checkpoint(long patchOffset, long targetOffset, int windowCount, int headerLength, int nearSize,
+               int sameSize, int secondaryCompressorId, long patchLength, long patchChecksum,
+               long targetChecksum) {
+        this.patchOffset = patchOffset;
+        this.targetOffset = targetOffset;
+        this.windowCount = windowCount;
+        this.headerLength = headerLength;
+        this.nearSize = nearSize;
+        this.sameSize = sameSize;
+        this.secondaryCompressorId = secondaryCompressorId;
+        this.patchLength = patchLength;
+        this.patchChecksum = patchChecksum;
+        this.targetChecksum = targetChecksum;
+    }
+
+    public void writeTo(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(patchOffset);
+        out.writeLong(targetOffset);
+        out.writeInt(windowCount);
+        out.writeInt(headerLength);
+        out.writeByte(nearSize);
+        out.writeByte(sameSize);
+        out.writeInt(secondaryCompressorId);
+        out.writeLong(patchLength);
+        out.writeInt((int) patchChecksum);
+        out.writeInt((int) targetChecksum);
+    }
+
+    public static Checkpoint readFrom(DataInput in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a checkpoint.");
+        }
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unsupported checkpoint version.");
+        }
+        return new Checkpoint(in.readLong(), in.readLong(), in.readInt(), in.readInt(),
+                in.readByte() & 0xff, in.readByte() & 0xff, in.readInt(), in.readLong(),
+                in.readInt() & 0xffffffffL, in.readInt() & 0xffffffffL);
+    }
+
+    /**
+     * write checkpoint to file and sync it. the file is replaced by rename, so an interrupted save
+     * leaves the last checkpoint saved.
+     */
+    public void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            IOUtils.closeQueitly(fos);
+        }
+        if (!temp.renameTo(file)) {
+            // rename does not replace existing file on some platforms.
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot save checkpoint to " + file + ".");
+            }
+        }
+    }
+
+    public static Checkpoint load(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return readFrom(in);
+        } finally {
+            IOUtils.closeQueitly(in);
+        }
+    }
+
+    /**
+     * where the next window starts in patch.
+     */
+    public long getPatchOffset() {
+        return patchOffset;
+    }
+
+    /**
+     * bytes of target written, where the next window starts in target.
+     */
+    public long getTargetOffset() {
+        return targetOffset;
+    }
+
+    /**
+     * windows decoded.
+     */
+    public int getWindowCount() {
+        return windowCount;
+    }
+
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    public int getNearSize() {
+        return nearSize;
+    }
+
+    public int getSameSize() {
+        return sameSize;
+    }
+
+    /**
+     * id of secondary compressor, -1 if none.
+     */
+    public int getSecondaryCompressorId() {
+        return secondaryCompressorId;
+    }
+
+    /**
+     * length of patch, -1 if not known.
+     */
+    public long getPatchLength() {
+        return patchLength;
+    }
+
+    /**
+     * adler32 of patch data before patch offset, unsigned.
+     */
+    public long getPatchChecksum() {
+        return patchChecksum;
+    }
+
+    /**
+     * adler32 of target data written, unsigned.
+     */
+    public long getTargetChecksum() {
+        return targetChecksum;
+    }
+
+    /**
+     * adler32 of two pieces of data joined, from adler32 of each and the length of the second,
+     * as zlib adler32_combine does.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ADLER_BASE * 2) {
+            sum2 -= ADLER_BASE * 2;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    @Override
+    public String toString() {
+        return "Checkpoint{patchOffset=" + patchOffset + ", targetOffset=" + targetOffset
+                + ", windowCount=" + windowCount + "}";
+    }
+}
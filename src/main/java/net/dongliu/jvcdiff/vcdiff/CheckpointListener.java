@@ -0,0 +1,19 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import java.io.IOException;
+
+/**
+ * Receives checkpoints of decoding, see {@link VcdiffDecoder#setCheckpointListener(CheckpointListener)}.
+ *
+ * @author dongliu
+ */
+public interface CheckpointListener {
+
+    /**
+     * called after the data of the window before checkpoint is written to target, by the thread
+     * writing target. target data should be made durable, e.g. by syncing target file, before the
+     * checkpoint is persisted.
+     * @throws IOException fails decoding.
+     */
+    void checkpoint(Checkpoint checkpoint) throws IOException;
+}
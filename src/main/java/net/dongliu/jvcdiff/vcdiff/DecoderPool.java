@@ -0,0 +1,54 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of idle decoders, so that buffers of decoders are reused across patches.
+ * Thread safe.
+ *
+ * @author dongliu
+ */
+public class DecoderPool {
+
+    private final Queue<VcdiffDecoder> idle = new ConcurrentLinkedQueue<VcdiffDecoder>();
+
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /** max idle decoders kept. */
+    private final int maxIdle;
+
+    public DecoderPool() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public DecoderPool(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * get an idle decoder, or a new one if no idle decoder.
+     * the decoder should be reset before decode, and be released after.
+     */
+    public VcdiffDecoder borrow() {
+        VcdiffDecoder decoder = idle.poll();
+        if (decoder == null) {
+            return new VcdiffDecoder();
+        }
+        idleCount.decrementAndGet();
+        return decoder;
+    }
+
+    /**
+     * return a decoder to pool. the decoder is dropped if pool is full.
+     */
+    public void release(VcdiffDecoder decoder) {
+        decoder.unbind();
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(decoder);
+    }
+}
@@ -0,0 +1,619 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.codetable.AddressCache;
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTable;
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.BufferWritable;
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.io.PatchReader;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+import net.dongliu.jvcdiff.vcdiff.secondary.SecondaryDecompressor;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * One vcdiff window: the header, views of the three sections, and the buffer it decodes into.
+ * Window objects are reused for following windows.
+ *
+ * @author dongliu
+ */
+class DeltaWindow {
+
+    /** source data comes from the original stream. */
+    static final int VCD_SOURCE = 1;
+    /** source data comes from the target stream. */
+    static final int VCD_TARGET = 2;
+    /**
+     * xdelta3 uses an undocumented extra bit which indicates that there are
+     * an extra 4 bytes at the end of the encoding for the window
+     */
+    static final int VCD_ADLER32 = 4;
+
+    /** delta indicator bits: the section is compressed by secondary compressor. */
+    static final int VCD_DATACOMP = 1;
+    static final int VCD_INSTCOMP = 2;
+    static final int VCD_ADDRCOMP = 4;
+
+    /** size of chunks data of windows decoded in buffers is moved in. */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /** window indicator without the checksum bit: 0, VCD_SOURCE or VCD_TARGET. */
+    int indicator;
+
+    boolean hasChecksum;
+
+    /** adler32 of target data, unsigned. */
+    int checksum;
+
+    int sourceLen;
+
+    long sourcePos;
+
+    int targetLen;
+
+    /** position in patch after this window, and adler32 of patch data before it if computed. */
+    long patchEnd;
+    long patchChecksum;
+
+    /** decoded data, [0, targetLen) is valid after decode. grows to the largest window seen. */
+    byte[] targetData = new byte[0];
+
+    /**
+     * buffer the window is decoded in instead of targetData: a region of scratch file if the window
+     * is larger than the memory budget, a direct buffer from pool, or the target itself. null otherwise.
+     */
+    private ScratchFile scratch;
+    private ScratchFile.Region region;
+    private DirectBufferPool pool;
+    private ByteBuffer directBuffer;
+    private ByteBuffer targetBuffer;
+
+    /** decoded straight into target, needs no {@link #writeTo}. */
+    boolean inTarget;
+
+    /** buffer for moving data to and from target buffer. */
+    private byte[] chunk;
+
+    /** the buffer delta data is in, and where the three sections are in it. */
+    private ByteBuffer delta;
+    private int deltaOffset;
+    private int addRunDataPos;
+    private int addRunDataLen;
+    private int instructionsPos;
+    private int instructionsLen;
+    private int addressesPos;
+    private int addressesLen;
+
+    /** views of the three sections. */
+    private ByteBuffer addRunData;
+    private ByteBuffer instructions;
+    private ByteBuffer addresses;
+
+    /** region of scratch file delta data is read in, if it is larger than the memory budget. */
+    private ScratchFile deltaScratch;
+    private ScratchFile.Region deltaRegion;
+
+    /** own copy of delta data, see {@link #detach()}. */
+    private byte[] deltaCopy = new byte[0];
+
+    /** compressed sections, decompressed when decoding. */
+    private int deltaIndicator;
+    private SecondaryDecompressor decompressor;
+    private final byte[][] decompressed = {new byte[0], new byte[0], new byte[0]};
+
+    private final Adler32 adler32 = new Adler32();
+
+    /**
+     * read next window header from patch. the sections are left in patch reader's buffer.
+     * @param decompressor secondary decompressor of patch, null if none.
+     * @return false if no more window.
+     */
+    boolean read(PatchReader patchReader, SecondaryDecompressor decompressor) throws IOException, PatchException {
+        return read(patchReader, decompressor, null);
+    }
+
+    /**
+     * read next window header from patch. the sections are left in patch reader's buffer, or read
+     * into scratch file if they are larger than scratch file accepts.
+     * @param decompressor secondary decompressor of patch, null if none.
+     * @param scratch scratch file for large windows, null to keep all sections in memory.
+     * @return false if no more window.
+     */
+    boolean read(PatchReader patchReader, SecondaryDecompressor decompressor, ScratchFile scratch)
+            throws IOException, PatchException {
+        releaseDelta();
+        int windowIndicator = patchReader.read();
+        // finished.
+        if (windowIndicator == -1) {
+            return false;
+        }
+        hasChecksum = ((windowIndicator & VCD_ADLER32) != 0);
+        // Get rid of the checksum bit for the rest
+        indicator = windowIndicator & ~VCD_ADLER32;
+        if (indicator != 0 && indicator != VCD_SOURCE && indicator != VCD_TARGET) {
+            throw new PatchException("Invalid window indicator.");
+        }
+
+        sourceLen = 0;
+        sourcePos = 0;
+        if (indicator != 0) {
+            sourceLen = patchReader.read7bitIntBE();
+            // source segment position is not bounded by window size, may exceed 2G.
+            sourcePos = patchReader.read7bitLongBE();
+            if (sourceLen < 0 || sourcePos < 0) {
+                throw new PatchException("Invalid source segment.");
+            }
+        }
+
+        // Length of the delta encoding
+        int deltaLen = patchReader.read7bitIntBE();
+        if (deltaLen < 0) {
+            throw new PatchException("Invalid delta length.");
+        }
+        long remaining = patchReader.remaining();
+        if (remaining >= 0 && deltaLen > remaining) {
+            throw new PatchException("Patch data is incomplete.");
+        }
+        // the rest of window, including all three sections, in one bulk read.
+        ByteBuffer window;
+        if (scratch != null && scratch.accepts(deltaLen)) {
+            deltaScratch = scratch;
+            deltaRegion = scratch.acquire(deltaLen);
+            window = deltaRegion.buffer.duplicate();
+            window.clear();
+            window.limit(deltaLen);
+            patchReader.readFully(window);
+            window.flip();
+        } else {
+            window = patchReader.read(deltaLen);
+        }
+        int deltaStart = window.position();
+        try {
+            readDeltaHeader(window, decompressor);
+        } catch (BufferUnderflowException e) {
+            throw new PatchException("Invalid window header.");
+        } catch (IndexOutOfBoundsException e) {
+            throw new PatchException("Invalid window header.");
+        }
+        addRunDataPos = window.position() - deltaStart;
+        instructionsPos = addRunDataPos + addRunDataLen;
+        addressesPos = instructionsPos + instructionsLen;
+        bind(window, deltaStart);
+        patchEnd = patchReader.position();
+        patchChecksum = patchReader.checksum();
+        return true;
+    }
+
+    /**
+     * parse the delta encoding header, window is left at the start of sections.
+     */
+    private void readDeltaHeader(ByteBuffer window, SecondaryDecompressor decompressor)
+            throws IOException, PatchException {
+        //  Length of the target window.the actual size of the target window after decompression
+        targetLen = IOUtils.read7bitIntBE(window);
+        if (targetLen < 0) {
+            throw new PatchException("Invalid target window length.");
+        }
+
+        // Delta_Indicator, sections compressed.
+        deltaIndicator = window.get() & 0xff;
+        if ((deltaIndicator & ~(VCD_DATACOMP | VCD_INSTCOMP | VCD_ADDRCOMP)) != 0) {
+            throw new PatchException("Invalid delta indicator.");
+        }
+        if (deltaIndicator != 0 && decompressor == null) {
+            throw new PatchException("Compressed delta sections without secondary compressor.");
+        }
+        this.decompressor = decompressor;
+        // COPY addresses are in [0, sourceLen + targetLen), should be int.
+        if ((long) sourceLen + targetLen > Integer.MAX_VALUE) {
+            throw new PatchException("Window too large, source length plus target length exceed 2G.");
+        }
+
+        // Length of data for ADDs and RUNs
+        addRunDataLen = IOUtils.read7bitIntBE(window);
+        // Length of instructions and sizes
+        instructionsLen = IOUtils.read7bitIntBE(window);
+        // Length of addresses for COPYs
+        addressesLen = IOUtils.read7bitIntBE(window);
+
+        // If we've been given a checksum, we have to read it and we might as well
+        checksum = 0;
+        if (hasChecksum) {
+            checksum = window.getInt();
+        }
+
+        if (addRunDataLen < 0 || instructionsLen < 0 || addressesLen < 0) {
+            throw new PatchException("Invalid section length.");
+        }
+        if ((long) addRunDataLen + instructionsLen + addressesLen > window.remaining()) {
+            throw new PatchException("Not enough data in window.");
+        }
+    }
+
+    /**
+     * copy sections out of patch reader's buffer, so this window can be decoded after
+     * the patch reader moves on.
+     */
+    void detach() {
+        if (deltaRegion != null) {
+            // not in patch reader's buffer.
+            return;
+        }
+        int length = addressesPos + addressesLen;
+        if (deltaCopy.length < length) {
+            deltaCopy = new byte[length];
+        }
+        ByteBuffer source = delta.duplicate();
+        source.position(deltaOffset);
+        source.get(deltaCopy, 0, length);
+        bind(ByteBuffer.wrap(deltaCopy), 0);
+    }
+
+    /**
+     * point section views to buffer, delta data starts at offset.
+     */
+    private void bind(ByteBuffer buffer, int offset) {
+        if (buffer != delta) {
+            delta = buffer;
+            addRunData = buffer.duplicate();
+            instructions = buffer.duplicate();
+            addresses = buffer.duplicate();
+        }
+        deltaOffset = offset;
+        section(addRunData, offset + addRunDataPos, addRunDataLen);
+        section(instructions, offset + instructionsPos, instructionsLen);
+        section(addresses, offset + addressesPos, addressesLen);
+    }
+
+    private static void section(ByteBuffer view, int position, int length) {
+        view.clear();
+        view.position(position);
+        view.limit(position + length);
+    }
+
+    /**
+     * section data, decompressed if the section is compressed.
+     * a compressed section is the length decompressed followed by the compressed data.
+     * @param maxLength max length of section decompressed.
+     */
+    private ByteBuffer sectionData(int compressBit, int index, ByteBuffer view, long maxLength)
+            throws IOException, PatchException {
+        if ((deltaIndicator & compressBit) == 0) {
+            return view;
+        }
+        ByteBuffer compressed = view.duplicate();
+        int length = IOUtils.read7bitIntBE(compressed);
+        if (length > maxLength) {
+            throw new PatchException("Decompressed section too large.");
+        }
+        if (decompressed[index].length < length) {
+            decompressed[index] = new byte[length];
+        }
+        decompressor.decompress(compressed, decompressed[index], length);
+        return ByteBuffer.wrap(decompressed[index], 0, length);
+    }
+
+    /**
+     * check adler32 checksum of decoded data, if the window has one.
+     * @throws PatchException if checksum mismatch.
+     */
+    void verify() throws PatchException {
+        if (!hasChecksum) {
+            return;
+        }
+        long expected = checksum & 0xffffffffL;
+        long actual = adler32();
+        if (actual != expected) {
+            throw new PatchException("Window checksum mismatch, expected " + Long.toHexString(expected)
+                    + " but got " + Long.toHexString(actual) + ".");
+        }
+    }
+
+    /**
+     * adler32 of decoded data.
+     */
+    long adler32() {
+        adler32.reset();
+        if (targetBuffer == null) {
+            adler32.update(targetData, 0, targetLen);
+        } else {
+            for (int pos = 0; pos < targetLen; pos += chunk.length) {
+                int size = Math.min(chunk.length, targetLen - pos);
+                targetBuffer.position(pos);
+                targetBuffer.get(chunk, 0, size);
+                adler32.update(chunk, 0, size);
+            }
+        }
+        return adler32.getValue();
+    }
+
+    /**
+     * write decoded data to target stream.
+     */
+    void writeTo(SeekableStream targetStream) throws IOException {
+        if (targetBuffer == null) {
+            targetStream.write(targetData, 0, targetLen);
+            return;
+        }
+        if (targetStream instanceof BufferWritable) {
+            targetBuffer.clear();
+            targetBuffer.limit(targetLen);
+            ((BufferWritable) targetStream).write(targetBuffer);
+            return;
+        }
+        for (int pos = 0; pos < targetLen; pos += chunk.length) {
+            int size = Math.min(chunk.length, targetLen - pos);
+            targetBuffer.position(pos);
+            targetBuffer.get(chunk, 0, size);
+            targetStream.write(chunk, 0, size);
+        }
+    }
+
+    /**
+     * update digest with decoded data.
+     */
+    void updateDigest(MessageDigest digest) {
+        if (targetBuffer == null) {
+            digest.update(targetData, 0, targetLen);
+            return;
+        }
+        targetBuffer.clear();
+        targetBuffer.limit(targetLen);
+        digest.update(targetBuffer);
+    }
+
+    /**
+     * give back the scratch regions or direct buffer the window is read and decoded in,
+     * after decoded data is used.
+     */
+    void release() {
+        releaseDelta();
+        releaseTarget();
+    }
+
+    private void releaseDelta() {
+        if (deltaRegion != null) {
+            deltaScratch.release(deltaRegion);
+            deltaRegion = null;
+        }
+    }
+
+    private void releaseTarget() {
+        if (region != null) {
+            scratch.release(region);
+            region = null;
+        }
+        if (directBuffer != null) {
+            pool.release(directBuffer);
+            directBuffer = null;
+        }
+        targetBuffer = null;
+        inTarget = false;
+    }
+
+    /**
+     * execute instructions of this window into targetData.
+     * @param sourceData source segment, null if the window has no source.
+     */
+    void decode(CodeTable codeTable, AddressCache cache, SeekableStream sourceData)
+            throws IOException, PatchException {
+        decode(codeTable, cache, sourceData, null, null);
+    }
+
+    /**
+     * execute instructions of this window, into scratch file if the window is larger than scratch
+     * file accepts, else into a direct buffer from pool, or targetData if no pool.
+     * call {@link #release()} after decoded data is used.
+     * @param sourceData source segment, null if the window has no source.
+     * @param scratch scratch file for large windows, null to decode all windows in memory.
+     * @param pool pool of direct buffers, null to decode in heap.
+     */
+    void decode(CodeTable codeTable, AddressCache cache, SeekableStream sourceData, ScratchFile scratch,
+                DirectBufferPool pool) throws IOException, PatchException {
+        releaseTarget();
+        if (scratch != null && scratch.accepts(targetLen)) {
+            this.scratch = scratch;
+            region = scratch.acquire(targetLen);
+            targetBuffer = region.buffer.duplicate();
+        } else if (pool != null) {
+            this.pool = pool;
+            directBuffer = pool.acquire(targetLen);
+            targetBuffer = directBuffer.duplicate();
+        } else if (targetData.length < targetLen) {
+            targetData = new byte[targetLen];
+        }
+        decodeSections(codeTable, cache, sourceData);
+    }
+
+    /**
+     * execute instructions of this window straight into target, e.g. a view of memory mapped target
+     * file at where the window is written.
+     * @param target buffer of targetLen bytes at least, from position 0.
+     */
+    void decode(CodeTable codeTable, AddressCache cache, SeekableStream sourceData, ByteBuffer target)
+            throws IOException, PatchException {
+        releaseTarget();
+        targetBuffer = target.duplicate();
+        inTarget = true;
+        decodeSections(codeTable, cache, sourceData);
+    }
+
+    private void decodeSections(CodeTable codeTable, AddressCache cache, SeekableStream sourceData)
+            throws IOException, PatchException {
+        if (targetBuffer != null && chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+
+        // an instruction takes at most an opcode and a size, an address at most 5 bytes.
+        ByteBuffer addRunData = sectionData(VCD_DATACOMP, 0, this.addRunData, targetLen);
+        ByteBuffer instructions = sectionData(VCD_INSTCOMP, 1, this.instructions, 6L * targetLen);
+        cache.reset(sectionData(VCD_ADDRCOMP, 2, addresses, 5L * targetLen));
+
+        try {
+            decodeInstructions(codeTable, cache, sourceData, addRunData, instructions);
+        } catch (BufferUnderflowException e) {
+            throw new PatchException("Window sections are truncated.");
+        } catch (IndexOutOfBoundsException e) {
+            throw new PatchException("Window sections are truncated: " + e.getMessage());
+        }
+    }
+
+    private void decodeInstructions(CodeTable codeTable, AddressCache cache, SeekableStream sourceData,
+                                    ByteBuffer addRunData, ByteBuffer instructions)
+            throws IOException, PatchException {
+        ByteBuffer targetBuffer = this.targetBuffer;
+        byte[] targetData = this.targetData;
+        int targetLen = this.targetLen;
+        int sourceLen = this.sourceLen;
+        // xdelta 有时生成的diff，sourceLen会大于实际可用的大小.
+        int realSourceLen = sourceData == null ? 0 : (int) sourceData.length();
+        // write position in targetData
+        int targetPos = 0;
+
+        byte[] types = codeTable.getTypes();
+        int[] sizes = codeTable.getSizes();
+        byte[] modes = codeTable.getModes();
+
+        while (instructions.hasRemaining()) {
+            int opcode = (instructions.get() & 0xff) << 1;
+
+            for (int end = opcode + 2; opcode < end; opcode++) {
+                int type = types[opcode];
+                if (type == CodeTable.TYPE_NO_OP) {
+                    continue;
+                }
+                int size = sizes[opcode];
+                if (size == 0) {
+                    size = IOUtils.read7bitIntBE(instructions);
+                }
+                if (size < 0) {
+                    throw new PatchException("Invalid instruction size.");
+                }
+                if (size > targetLen - targetPos) {
+                    throw new PatchException("Instructions exceed target window length.");
+                }
+                switch (type) {
+                    case CodeTable.TYPE_ADD:
+                        if (size > addRunData.remaining()) {
+                            throw new PatchException("ADD exceeds add and run data.");
+                        }
+                        if (targetBuffer == null) {
+                            addRunData.get(targetData, targetPos, size);
+                        } else {
+                            int limit = addRunData.limit();
+                            addRunData.limit(addRunData.position() + size);
+                            targetBuffer.position(targetPos);
+                            targetBuffer.put(addRunData);
+                            addRunData.limit(limit);
+                        }
+                        break;
+                    case CodeTable.TYPE_COPY:
+                        int addr = cache.decodeAddress(targetPos + sourceLen, modes[opcode]);
+                        if (sourceData != null && addr < realSourceLen) {
+                            sourceData.seek(addr);
+                            if (targetBuffer == null) {
+                                IOUtils.readFully(sourceData, targetData, targetPos, size);
+                            } else {
+                                copyFromSource(sourceData, targetPos, size);
+                            }
+                        } else {
+                            // Data is in target data
+                            // Get rid of the offset
+                            addr -= sourceLen;
+                            if (targetBuffer == null) {
+                                copyInTarget(targetData, addr, targetPos, size);
+                            } else {
+                                copyInBuffer(addr, targetPos, size);
+                            }
+                        }
+                        break;
+                    case CodeTable.TYPE_RUN:
+                        if (!addRunData.hasRemaining()) {
+                            throw new PatchException("RUN exceeds add and run data.");
+                        }
+                        if (targetBuffer == null) {
+                            Arrays.fill(targetData, targetPos, targetPos + size, addRunData.get());
+                        } else {
+                            fillBuffer(addRunData.get(), targetPos, size);
+                        }
+                        break;
+                    default:
+                        throw new PatchException("Invalid instruction type found.");
+                }
+                targetPos += size;
+            }
+        }
+        if (targetPos != targetLen) {
+            throw new PatchException("Instructions do not fill target window.");
+        }
+    }
+
+    private void copyFromSource(SeekableStream sourceData, int pos, int size) throws IOException {
+        targetBuffer.position(pos);
+        for (int copied = 0; copied < size; ) {
+            int length = Math.min(chunk.length, size - copied);
+            IOUtils.readFully(sourceData, chunk, 0, length);
+            targetBuffer.put(chunk, 0, length);
+            copied += length;
+        }
+    }
+
+    /**
+     * copy size bytes at addr to pos in target buffer. as in {@link #copyInTarget}, data of an
+     * overlapped copy repeats with period pos - addr, so data may be copied from any decoded
+     * position at the same offset in the period.
+     */
+    private void copyInBuffer(int addr, int pos, int size) throws PatchException {
+        if (addr < 0 || addr >= pos) {
+            throw new PatchException("Invalid copy address in target window.");
+        }
+        int period = pos - addr;
+        for (int copied = 0; copied < size; ) {
+            int from = addr + (addr + size <= pos ? copied : copied % period);
+            int length = Math.min(Math.min(chunk.length, size - copied), pos + copied - from);
+            targetBuffer.position(from);
+            targetBuffer.get(chunk, 0, length);
+            targetBuffer.position(pos + copied);
+            targetBuffer.put(chunk, 0, length);
+            copied += length;
+        }
+    }
+
+    private void fillBuffer(byte b, int pos, int size) {
+        Arrays.fill(chunk, 0, Math.min(chunk.length, size), b);
+        targetBuffer.position(pos);
+        for (int filled = 0; filled < size; ) {
+            int length = Math.min(chunk.length, size - filled);
+            targetBuffer.put(chunk, 0, length);
+            filled += length;
+        }
+    }
+
+    /**
+     * copy size bytes at addr to pos, both in target window.
+     * overlapped copy repeats the data in [addr, pos), so copy the first period
+     * and then double the chunk copied each time.
+     */
+    private static void copyInTarget(byte[] targetData, int addr, int pos, int size)
+            throws PatchException {
+        if (addr < 0 || addr >= pos) {
+            throw new PatchException("Invalid copy address in target window.");
+        }
+        if (addr + size <= pos) {
+            System.arraycopy(targetData, addr, targetData, pos, size);
+            return;
+        }
+        int copied = 0;
+        while (copied < size) {
+            // [addr, pos + copied) is already decoded, and its length is a multiple of the period.
+            int chunk = Math.min(pos + copied - addr, size - copied);
+            System.arraycopy(targetData, addr, targetData, pos + copied, chunk);
+            copied += chunk;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Pool of direct byte buffers windows are decoded in, so window data stays off heap and can be
+ * written to channels without copy. Buffer capacities are rounded up to powers of two, so buffers are
+ * reused by windows of similar size. Idle buffers are bounded by bytes, buffers released over
+ * the bound are dropped.
+ * Thread safe, may be shared by decoders.
+ *
+ * @author dongliu
+ */
+public class DirectBufferPool {
+
+    public static final long DEFAULT_MAX_IDLE_BYTES = 256 * 1024 * 1024;
+
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private final long maxIdleBytes;
+
+    /** idle buffers by capacity. */
+    private final TreeMap<Integer, LinkedList<ByteBuffer>> idle = new TreeMap<Integer, LinkedList<ByteBuffer>>();
+    private long idleBytes;
+
+    public DirectBufferPool() {
+        this(DEFAULT_MAX_IDLE_BYTES);
+    }
+
+    /**
+     * @param maxIdleBytes max bytes of idle buffers kept.
+     */
+    public DirectBufferPool(long maxIdleBytes) {
+        this.maxIdleBytes = maxIdleBytes;
+    }
+
+    /**
+     * get a cleared buffer with capacity of at least length.
+     */
+    public synchronized ByteBuffer acquire(int length) {
+        int capacity = capacity(length);
+        LinkedList<ByteBuffer> buffers = idle.get(capacity);
+        if (buffers != null) {
+            ByteBuffer buffer = buffers.removeFirst();
+            if (buffers.isEmpty()) {
+                idle.remove(capacity);
+            }
+            idleBytes -= capacity;
+            return buffer;
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * return a buffer got from this pool.
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (idleBytes + capacity > maxIdleBytes) {
+            // drop larger idle buffers first, the smaller ones are more likely reused.
+            while (idleBytes + capacity > maxIdleBytes && !idle.isEmpty()) {
+                Map.Entry<Integer, LinkedList<ByteBuffer>> largest = idle.lastEntry();
+                if (largest.getKey() <= capacity) {
+                    break;
+                }
+                largest.getValue().removeFirst();
+                if (largest.getValue().isEmpty()) {
+                    idle.remove(largest.getKey());
+                }
+                idleBytes -= largest.getKey();
+            }
+            if (idleBytes + capacity > maxIdleBytes) {
+                return;
+            }
+        }
+        buffer.clear();
+        LinkedList<ByteBuffer> buffers = idle.get(capacity);
+        if (buffers == null) {
+            buffers = new LinkedList<ByteBuffer>();
+            idle.put(capacity, buffers);
+        }
+        buffers.add(buffer);
+        idleBytes += capacity;
+    }
+
+    /**
+     * drop idle buffers.
+     */
+    public synchronized void clear() {
+        idle.clear();
+        idleBytes = 0;
+    }
+
+    private static int capacity(int length) {
+        if (length <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        int capacity = Integer.highestOneBit(length - 1) << 1;
+        // no power of two above 1G fits an int.
+        return capacity > 0 ? capacity : length;
+    }
+}
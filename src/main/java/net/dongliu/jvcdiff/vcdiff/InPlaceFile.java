@@ -0,0 +1,381 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.FileSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A file patched in place: origin is read from and target is written to the same file.
+ * Target is written from the start of file window by window, so a window overwrites origin data
+ * that later windows may copy from. Before the target overwrites it, such data is preserved in
+ * memory, and dropped when the last window copying from it is decoded.
+ * The data to preserve is planned from window source segments in {@link PatchInfo}, so the scratch
+ * memory needed is known before the file is touched.
+ * Not thread safe, windows should be decoded in order.
+ *
+ * @author dongliu
+ */
+class InPlaceFile {
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final PatchInfo patchInfo;
+
+    /** length of origin, before target is written. */
+    private final long originLength;
+
+    /** origin regions to preserve, by position; each is written by one window. */
+    private final List<Piece> pieces = new ArrayList<Piece>();
+    private int nextPiece;
+
+    /** max bytes preserved at a time. */
+    private long scratchBytes;
+
+    /** preserved origin data by position. */
+    private final TreeMap<Long, Piece> preserved = new TreeMap<Long, Piece>();
+
+    /** end of target written, origin data before it is overwritten. */
+    private long written;
+
+    InPlaceFile(RandomAccessFile raf, PatchInfo patchInfo) throws IOException {
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.patchInfo = patchInfo;
+        this.originLength = raf.length();
+        plan();
+    }
+
+    /**
+     * find origin regions each window overwrites and later windows copy from,
+     * and the bytes preserved at most.
+     * target windows are in file order, so the windows overwriting a source segment are found by
+     * binary search, instead of checking every later window for each window.
+     */
+    private void plan() {
+        List<WindowInfo> windows = patchInfo.getWindows();
+        int count = windows.size();
+        // origin regions each window overwrites, with the later window copying from them.
+        List<List<Piece>> overlaps = new ArrayList<List<Piece>>(count);
+        for (int i = 0; i < count; i++) {
+            overlaps.add(null);
+        }
+        for (int j = 0; j < count; j++) {
+            WindowInfo later = windows.get(j);
+            if (!later.isSourceFromOrigin()) {
+                continue;
+            }
+            long sourceEnd = Math.min(later.sourcePos + later.sourceLength, originLength);
+            int i = patchInfo.findWindow(later.sourcePos);
+            if (i < 0) {
+                continue;
+            }
+            for (; i < j && windows.get(i).targetOffset < sourceEnd; i++) {
+                WindowInfo window = windows.get(i);
+                long from = Math.max(window.targetOffset, later.sourcePos);
+                long to = Math.min(window.targetOffset + window.targetLength, sourceEnd);
+                if (from < to) {
+                    if (overlaps.get(i) == null) {
+                        overlaps.set(i, new ArrayList<Piece>());
+                    }
+                    overlaps.get(i).add(new Piece(from, to, j));
+                }
+            }
+        }
+
+        // bytes dropped after each window decoded.
+        long[] released = new long[count];
+        long live = 0;
+        for (int i = 0; i < count; i++) {
+            live -= released[i];
+            if (overlaps.get(i) == null) {
+                continue;
+            }
+            for (Piece piece : merge(overlaps.get(i))) {
+                pieces.add(piece);
+                live += piece.end - piece.start;
+                released[piece.lastUser] += piece.end - piece.start;
+            }
+            scratchBytes = Math.max(scratchBytes, live);
+        }
+    }
+
+    /**
+     * merge overlapped regions, a merged region is kept until the last window using any part of it.
+     */
+    private static List<Piece> merge(List<Piece> regions) {
+        Collections.sort(regions, new Comparator<Piece>() {
+            @Override
+            public int compare(Piece o1, Piece o2) {
+                return o1.start < o2.start ? -1 : (o1.start == o2.start ? 0 : 1);
+            }
+        });
+        List<Piece> merged = new ArrayList<Piece>();
+        Piece last = null;
+        for (Piece region : regions) {
+            if (last != null && region.start <= last.end) {
+                last = new Piece(last.start, Math.max(last.end, region.end),
+                        Math.max(last.lastUser, region.lastUser));
+                merged.set(merged.size() - 1, last);
+            } else {
+                last = region;
+                merged.add(last);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * max bytes of origin data preserved in memory at a time.
+     */
+    long getScratchBytes() {
+        return scratchBytes;
+    }
+
+    /**
+     * drop origin data written after target length.
+     */
+    void truncate() throws IOException {
+        if (raf.length() > patchInfo.getTargetLength()) {
+            raf.setLength(patchInfo.getTargetLength());
+        }
+    }
+
+    /**
+     * origin data of the file, as it was before patching.
+     */
+    SeekableStream origin() {
+        return new RegionStream(0, originLength, true);
+    }
+
+    /**
+     * target stream of the file, preserves origin data before overwriting it.
+     */
+    SeekableStream target() throws FileNotFoundException {
+        return new TargetStream();
+    }
+
+    /**
+     * called before target data at [pos, pos + length) is written.
+     */
+    private void beforeWrite(long pos, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (pos < originLength) {
+            // the window writing is decoded, as are windows before it.
+            int windowNo = patchInfo.findWindow(pos);
+            for (Iterator<Piece> iterator = preserved.values().iterator(); iterator.hasNext(); ) {
+                if (iterator.next().lastUser <= windowNo) {
+                    iterator.remove();
+                }
+            }
+            long end = pos + length;
+            while (nextPiece < pieces.size() && pieces.get(nextPiece).start < end) {
+                Piece piece = pieces.get(nextPiece++);
+                piece.data = new byte[(int) (piece.end - piece.start)];
+                ByteBuffer buffer = ByteBuffer.wrap(piece.data);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, piece.start + buffer.position()) < 0) {
+                        throw new IOException("Unexpected end of origin.");
+                    }
+                }
+                preserved.put(piece.start, piece);
+            }
+        }
+        written = Math.max(written, pos + length);
+    }
+
+    /**
+     * origin region preserved.
+     */
+    private static class Piece {
+        private final long start;
+        private final long end;
+        /** the last window copying from the region. */
+        private final int lastUser;
+        private byte[] data;
+
+        Piece(long start, long end, int lastUser) {
+            this.start = start;
+            this.end = end;
+            this.lastUser = lastUser;
+        }
+    }
+
+    /**
+     * read origin data at pos, from preserved regions where target is written, and from file after.
+     * @return bytes read, -1 at the end of origin.
+     */
+    private int readOrigin(long pos, byte[] data, int offset, int length) throws IOException {
+        if (pos >= originLength) {
+            return -1;
+        }
+        length = (int) Math.min(length, originLength - pos);
+        if (pos >= written) {
+            return channel.read(ByteBuffer.wrap(data, offset, length), pos);
+        }
+        Map.Entry<Long, Piece> entry = preserved.floorEntry(pos);
+        if (entry == null || pos >= entry.getValue().end) {
+            throw new IOException("Origin data at " + pos + " is overwritten.");
+        }
+        Piece piece = entry.getValue();
+        int size = (int) Math.min(length, Math.min(piece.end, written) - pos);
+        System.arraycopy(piece.data, (int) (pos - piece.start), data, offset, size);
+        return size;
+    }
+
+    /**
+     * read target data written at pos, from file.
+     * @return bytes read, -1 at the end of file.
+     */
+    private int readTarget(long pos, byte[] data, int offset, int length) throws IOException {
+        return channel.read(ByteBuffer.wrap(data, offset, length), pos);
+    }
+
+    /**
+     * origin data in [start, start + length), read by {@link #readOrigin}; or target data,
+     * read by {@link #readTarget}.
+     * slices share data with the file and preserved regions, nothing is copied or mapped.
+     */
+    private class RegionStream implements SeekableStream {
+        private final long start;
+        private final long length;
+        private final boolean origin;
+        private long pos;
+        private final byte[] oneByte = new byte[1];
+
+        RegionStream(long start, long length, boolean origin) {
+            this.start = start;
+            this.length = length;
+            this.origin = origin;
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (pos < 0 || pos > length) {
+                throw new IOException("Not a seekable pos, larger than lengh or less than zero.");
+            }
+            this.pos = pos;
+        }
+
+        @Override
+        public long pos() throws IOException {
+            return pos;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if (pos >= this.length) {
+                return -1;
+            }
+            length = (int) Math.min(length, this.length - pos);
+            int size = origin ? readOrigin(start + pos, data, offset, length)
+                    : readTarget(start + pos, data, offset, length);
+            if (size > 0) {
+                pos += size;
+            }
+            return size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xff;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte b) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long length() throws IOException {
+            return length;
+        }
+
+        @Override
+        public SeekableStream asReadonly() {
+            return this;
+        }
+
+        /**
+         * a view of the data, of origin valid until the window decoding from it is written.
+         */
+        @Override
+        public SeekableStream slice(int length) throws IOException {
+            if (pos + length > this.length) {
+                throw new IndexOutOfBoundsException("Not enough data in stream, require:" + length);
+            }
+            SeekableStream slice = new RegionStream(start + pos, length, origin);
+            pos += length;
+            return slice;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        /**
+         * the file is closed by owner.
+         */
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    /**
+     * target written to the file, slices of target data are read with positional reads, as the file
+     * is truncated after patching and should not be mapped.
+     */
+    private class TargetStream extends FileSeekableStream {
+
+        TargetStream() throws FileNotFoundException {
+            super(raf);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            beforeWrite(pos(), length);
+            super.write(data, offset, length);
+        }
+
+        @Override
+        public void write(byte b) throws IOException {
+            beforeWrite(pos(), 1);
+            super.write(b);
+        }
+
+        @Override
+        public void write(ByteBuffer data) throws IOException {
+            beforeWrite(pos(), data.remaining());
+            super.write(data);
+        }
+
+        @Override
+        public SeekableStream slice(int length) throws IOException {
+            long pos = pos();
+            SeekableStream slice = new RegionStream(pos, length, false);
+            seek(pos + length);
+            return slice;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Structure of a patch: the header and the header of every window, read by skipping from
+ * window to window without decoding any instruction.
+ * Good for preallocating target, checking space, rejecting oversized patch and planning
+ * source reads before patching.
+ *
+ * @author dongliu
+ */
+public class PatchInfo {
+
+    /**
+     * a window header takes at most this many bytes before sections: indicator, source segment,
+     * delta length, target length, delta indicator, section lengths and checksum.
+     */
+    private static final int MAX_WINDOW_HEADER_SIZE = 1 + 5 + 10 + 5 + 5 + 1 + 15 + 4;
+
+    private int headerLength;
+    private int secondaryCompressorId = -1;
+    private boolean customCodeTable;
+    private boolean applicationHeader;
+
+    private final List<WindowInfo> windows = new ArrayList<WindowInfo>();
+    /** target offset of each window, for binary search. */
+    private long[] targetOffsets = new long[16];
+
+    private long targetLength;
+    private int maxWindowLength;
+    private long originEnd;
+
+    private PatchInfo() {
+    }
+
+    /**
+     * read structure of patch. patch is read from the start, and left at some position.
+     * @throws IOException
+     * @throws PatchException if patch is invalid.
+     */
+    public static PatchInfo read(SeekableStream patch) throws IOException, PatchException {
+        return read(patch, Long.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * read structure of patch, and stop as soon as the patch exceeds limits.
+     * @param maxTargetLength max length of patch result.
+     * @param maxWindowLength max target length of one window, which is memory decoder need.
+     * @throws IOException
+     * @throws PatchException if patch is invalid, or exceeds limits.
+     */
+    public static PatchInfo read(SeekableStream patch, long maxTargetLength, int maxWindowLength)
+            throws IOException, PatchException {
+        PatchInfo info = new PatchInfo();
+        try {
+            info.readHeader(patch);
+        } catch (IndexOutOfBoundsException e) {
+            throw new PatchException("Patch data is incomplete.");
+        }
+        info.readWindows(patch, maxTargetLength, maxWindowLength);
+        return info;
+    }
+
+    private void readHeader(SeekableStream patch) throws IOException, PatchException {
+        long patchLength = patch.length();
+        patch.seek(0);
+        byte[] magic = IOUtils.readBytes(patch, (int) Math.min(4, patchLength));
+        if (magic.length < 4 || magic[0] != (byte) 0xd6 || magic[1] != (byte) 0xc3 || magic[2] != (byte) 0xc4) {
+            throw new PatchException("The jvcdiff file is Not vcdiff file.");
+        }
+        if (magic[3] != 0) {
+            throw new UnsupportedOperationException("Unsupported vcdiff version.");
+        }
+        int headerIndicator = IOUtils.readByte(patch);
+        if ((headerIndicator & 0xf8) != 0) {
+            throw new PatchException("Invalid header indicator - bits 3-7 not all zero.");
+        }
+        if ((headerIndicator & 1) != 0) {
+            secondaryCompressorId = IOUtils.readByte(patch);
+        }
+        customCodeTable = ((headerIndicator & 2) != 0);
+        if (customCodeTable) {
+            skip(patch, IOUtils.read7bitIntBE(patch), patchLength);
+        }
+        applicationHeader = ((headerIndicator & 4) != 0);
+        if (applicationHeader) {
+            skip(patch, IOUtils.read7bitIntBE(patch), patchLength);
+        }
+        headerLength = (int) patch.pos();
+    }
+
+    private static void skip(SeekableStream patch, int length, long patchLength)
+            throws IOException, PatchException {
+        long pos = patch.pos() + length;
+        if (length < 0 || pos > patchLength) {
+            throw new PatchException("Patch data is incomplete.");
+        }
+        patch.seek(pos);
+    }
+
+    private void readWindows(SeekableStream patch, long maxTargetLength, int maxWindowLength)
+            throws IOException, PatchException {
+        long patchLength = patch.length();
+        long offset = headerLength;
+        byte[] windowHeader = new byte[MAX_WINDOW_HEADER_SIZE];
+        while (offset < patchLength) {
+            int size = (int) Math.min(windowHeader.length, patchLength - offset);
+            patch.seek(offset);
+            IOUtils.readFully(patch, windowHeader, 0, size);
+            ByteBuffer buffer = ByteBuffer.wrap(windowHeader, 0, size);
+            try {
+                offset += readWindow(buffer, offset, patchLength, maxTargetLength, maxWindowLength);
+            } catch (BufferUnderflowException e) {
+                throw new PatchException("Invalid window header.");
+            } catch (IndexOutOfBoundsException e) {
+                // header cut by the end of patch.
+                throw new PatchException("Invalid window header.");
+            }
+        }
+    }
+
+    /**
+     * parse window header in buffer.
+     * @return bytes of the window.
+     */
+    private long readWindow(ByteBuffer buffer, long offset, long patchLength, long maxTargetLength,
+                            int maxWindowLength) throws IOException, PatchException {
+        int windowIndicator = buffer.get() & 0xff;
+        boolean hasChecksum = (windowIndicator & DeltaWindow.VCD_ADLER32) != 0;
+        int indicator = windowIndicator & ~DeltaWindow.VCD_ADLER32;
+        if (indicator != 0 && indicator != DeltaWindow.VCD_SOURCE && indicator != DeltaWindow.VCD_TARGET) {
+            throw new PatchException("Invalid window indicator.");
+        }
+        int sourceLength = 0;
+        long sourcePos = 0;
+        if (indicator != 0) {
+            sourceLength = IOUtils.read7bitIntBE(buffer);
+            sourcePos = IOUtils.read7bitLongBE(buffer);
+        }
+        int deltaLength = IOUtils.read7bitIntBE(buffer);
+        if (sourceLength < 0 || sourcePos < 0 || deltaLength < 0) {
+            throw new PatchException("Invalid window header.");
+        }
+        int deltaStart = buffer.position();
+        long windowLength = deltaStart + (long) deltaLength;
+        if (offset + windowLength > patchLength) {
+            throw new PatchException("Patch data is incomplete.");
+        }
+
+        int windowTargetLength = IOUtils.read7bitIntBE(buffer);
+        int deltaIndicator = buffer.get() & 0xff;
+        int addRunDataLength = IOUtils.read7bitIntBE(buffer);
+        int instructionsLength = IOUtils.read7bitIntBE(buffer);
+        int addressesLength = IOUtils.read7bitIntBE(buffer);
+        int checksum = hasChecksum ? buffer.getInt() : 0;
+        if (windowTargetLength < 0 || addRunDataLength < 0 || instructionsLength < 0 || addressesLength < 0) {
+            throw new PatchException("Invalid window header.");
+        }
+        if (buffer.position() - deltaStart + (long) addRunDataLength + instructionsLength
+                + addressesLength > deltaLength) {
+            throw new PatchException("Window sections exceed delta length.");
+        }
+        if ((long) sourceLength + windowTargetLength > Integer.MAX_VALUE) {
+            throw new PatchException("Window too large, source length plus target length exceed 2G.");
+        }
+        if (indicator == DeltaWindow.VCD_TARGET && sourcePos > targetLength) {
+            throw new PatchException("Source segment position out of target stream.");
+        }
+        if (windowTargetLength > maxWindowLength) {
+            throw new PatchException("Window " + windows.size() + " target length " + windowTargetLength
+                    + " exceeds limit " + maxWindowLength + ".");
+        }
+        if (targetLength + windowTargetLength > maxTargetLength) {
+            throw new PatchException("Patch target length exceeds limit " + maxTargetLength + ".");
+        }
+
+        addWindow(new WindowInfo(offset, windowLength, indicator, hasChecksum, checksum, sourcePos,
+                sourceLength, targetLength, windowTargetLength, deltaIndicator, addRunDataLength,
+                instructionsLength, addressesLength));
+        return windowLength;
+    }
+
+    private void addWindow(WindowInfo window) {
+        int index = windows.size();
+        if (index == targetOffsets.length) {
+            targetOffsets = Arrays.copyOf(targetOffsets, index * 2);
+        }
+        targetOffsets[index] = window.targetOffset;
+        windows.add(window);
+        targetLength += window.targetLength;
+        maxWindowLength = Math.max(maxWindowLength, window.targetLength);
+        if (window.indicator == DeltaWindow.VCD_SOURCE) {
+            originEnd = Math.max(originEnd, window.sourcePos + window.sourceLength);
+        }
+    }
+
+    /**
+     * the window containing the target data at pos, or -1 if pos is not in target.
+     * empty windows are never returned.
+     */
+    public int findWindow(long pos) {
+        if (pos < 0 || pos >= targetLength) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(targetOffsets, 0, windows.size(), pos);
+        if (index < 0) {
+            index = -index - 2;
+        }
+        // skip empty windows at the same offset.
+        while (pos >= targetOffsets[index] + windows.get(index).targetLength) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * bytes of patch header, where the first window starts.
+     */
+    public int getHeaderLength() {
+        return headerLength;
+    }
+
+    /**
+     * id of secondary compressor, -1 if none.
+     */
+    public int getSecondaryCompressorId() {
+        return secondaryCompressorId;
+    }
+
+    public boolean hasCustomCodeTable() {
+        return customCodeTable;
+    }
+
+    public boolean hasApplicationHeader() {
+        return applicationHeader;
+    }
+
+    /**
+     * length of patch result.
+     */
+    public long getTargetLength() {
+        return targetLength;
+    }
+
+    public int getWindowCount() {
+        return windows.size();
+    }
+
+    public WindowInfo getWindow(int windowNo) {
+        return windows.get(windowNo);
+    }
+
+    public List<WindowInfo> getWindows() {
+        return Collections.unmodifiableList(windows);
+    }
+
+    /**
+     * the largest target length of windows.
+     */
+    public int getMaxWindowLength() {
+        return maxWindowLength;
+    }
+
+    /**
+     * end of the origin data windows declare to copy from.
+     * xdelta may declare source segment beyond the end of origin, so this may exceed origin length.
+     */
+    public long getOriginEnd() {
+        return originEnd;
+    }
+}
@@ -0,0 +1,338 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.io.PatchReader;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Read only view of the patch result, decoded lazily.
+ * Windows are indexed by their target offsets when opened, only the windows covering the data read
+ * are decoded, and recently decoded windows are cached.
+ * Windows using target data as source decode the windows they copy from first.
+ * Not thread safe.
+ *
+ * @author dongliu
+ */
+public class PatchedSeekableStream implements SeekableStream {
+
+    /** default max bytes of decoded windows cached. */
+    public static final int DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+    private final SeekableStream originStream;
+
+    private final SeekableStream patchStream;
+
+    private final VcdiffDecoder decoder;
+
+    private final PatchReader patchReader = new PatchReader();
+
+    private final DeltaWindow window = new DeltaWindow();
+
+    /** header and window index. */
+    private final PatchInfo info;
+
+    private long pos;
+
+    /** decoded windows by window number, in access order. */
+    private final LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+    private long cachedBytes;
+    private long maxCachedBytes = DEFAULT_CACHE_SIZE;
+
+    /** buffer of window patch data. */
+    private byte[] windowBuffer = new byte[0];
+
+    private final byte[] oneByte = new byte[1];
+
+    /**
+     * read patch header and index windows.
+     * @param originStream the origin, may be null if no window uses origin data.
+     * @param patchStream the patch, read at random positions.
+     * @throws IOException
+     * @throws PatchException
+     */
+    public PatchedSeekableStream(SeekableStream originStream, SeekableStream patchStream)
+            throws IOException, PatchException {
+        this.originStream = originStream;
+        this.patchStream = patchStream;
+        this.decoder = new VcdiffDecoder(originStream, patchReader, null);
+        this.info = PatchInfo.read(patchStream);
+        for (WindowInfo windowInfo : info.getWindows()) {
+            if (windowInfo.patchLength > Integer.MAX_VALUE) {
+                throw new PatchException("Window too large.");
+            }
+        }
+        patchStream.seek(0);
+        patchReader.append(ByteBuffer.wrap(IOUtils.readBytes(patchStream, info.getHeaderLength())));
+        decoder.readHeader();
+        patchReader.detach();
+    }
+
+    /**
+     * max bytes of decoded windows cached, default 64M. at least one window is always cached.
+     */
+    public void setCacheSize(long maxCachedBytes) {
+        this.maxCachedBytes = maxCachedBytes;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0 || pos > info.getTargetLength()) {
+            throw new IOException("Not a seekable pos, larger than lengh or less than zero.");
+        }
+        this.pos = pos;
+    }
+
+    @Override
+    public long pos() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (pos >= info.getTargetLength()) {
+            return -1;
+        }
+        int size = readAt(pos, data, offset, length);
+        pos += size;
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(oneByte, 0, 1) < 0 ? -1 : oneByte[0] & 0xff;
+    }
+
+    /**
+     * read data of the window at pos, no more than length bytes.
+     */
+    private int readAt(long pos, byte[] data, int offset, int length) throws IOException {
+        int windowNo = info.findWindow(pos);
+        byte[] targetData = decodeWindow(windowNo);
+        int windowOffset = (int) (pos - info.getWindow(windowNo).targetOffset);
+        int size = Math.min(length, targetData.length - windowOffset);
+        System.arraycopy(targetData, windowOffset, data, offset, size);
+        return size;
+    }
+
+    /**
+     * get decoded data of window, from cache or decode it.
+     * windows it copies from are decoded first, oldest first, so the recursion of decoding stays shallow.
+     * a window decoded is kept cached over the cache size only until the last window copying from it
+     * is decoded.
+     */
+    private byte[] decodeWindow(int windowNo) throws IOException {
+        byte[] targetData = cache.get(windowNo);
+        if (targetData != null) {
+            return targetData;
+        }
+        TreeSet<Integer> chain = dependencies(windowNo);
+        chain.add(windowNo);
+        // the last window in chain copying from each window.
+        Map<Integer, Integer> lastUsers = new HashMap<Integer, Integer>();
+        for (int window : chain) {
+            for (int source : sourceWindows(window)) {
+                lastUsers.put(source, window);
+            }
+        }
+        for (int window : chain) {
+            if (!cache.containsKey(window)) {
+                byte[] data = decodeWindowData(window);
+                if (window == windowNo) {
+                    targetData = data;
+                }
+            }
+            evict(lastUsers, window);
+        }
+        return targetData;
+    }
+
+    /**
+     * windows not cached which the window copies from, directly or not.
+     */
+    private TreeSet<Integer> dependencies(int windowNo) {
+        TreeSet<Integer> dependencies = new TreeSet<Integer>();
+        LinkedList<Integer> pending = new LinkedList<Integer>();
+        pending.add(windowNo);
+        while (!pending.isEmpty()) {
+            int current = pending.removeFirst();
+            for (int i : sourceWindows(current)) {
+                if (!cache.containsKey(i) && dependencies.add(i)) {
+                    pending.add(i);
+                }
+            }
+        }
+        return dependencies;
+    }
+
+    /**
+     * windows the window copies from directly, in order.
+     */
+    private List<Integer> sourceWindows(int windowNo) {
+        List<Integer> windows = new ArrayList<Integer>();
+        WindowInfo windowInfo = info.getWindow(windowNo);
+        if (!windowInfo.isSourceFromTarget()) {
+            return windows;
+        }
+        long start = windowInfo.sourcePos;
+        long end = Math.min(start + windowInfo.sourceLength, windowInfo.targetOffset);
+        if (start >= end) {
+            return windows;
+        }
+        for (int i = info.findWindow(start); i < windowNo && info.getWindow(i).targetOffset < end; i++) {
+            windows.add(i);
+        }
+        return windows;
+    }
+
+    private byte[] decodeWindowData(int windowNo) throws IOException {
+        try {
+            // source data is read before this window is loaded, as it may decode other windows.
+            SeekableStream sourceData = openSource(windowNo);
+            loadWindow(windowNo);
+            try {
+                window.decode(decoder.getCodeTable(), decoder.getCache(), sourceData);
+            } finally {
+                IOUtils.closeQueitly(sourceData);
+            }
+            window.verify();
+        } catch (PatchException e) {
+            throw new IOException("Invalid patch data in window " + windowNo + ".", e);
+        }
+        byte[] targetData = Arrays.copyOf(window.targetData, window.targetLen);
+        cache(windowNo, targetData);
+        return targetData;
+    }
+
+    /**
+     * read patch data of window, and parse it.
+     */
+    private void loadWindow(int windowNo) throws IOException, PatchException {
+        WindowInfo windowInfo = info.getWindow(windowNo);
+        int patchLength = (int) windowInfo.patchLength;
+        if (windowBuffer.length < patchLength) {
+            windowBuffer = new byte[patchLength];
+        }
+        patchStream.seek(windowInfo.patchOffset);
+        IOUtils.readFully(patchStream, windowBuffer, 0, patchLength);
+        patchReader.detach();
+        patchReader.append(ByteBuffer.wrap(windowBuffer, 0, patchLength));
+        window.read(patchReader, decoder.getDecompressor());
+    }
+
+    private void cache(int windowNo, byte[] targetData) {
+        cache.put(windowNo, targetData);
+        cachedBytes += targetData.length;
+    }
+
+    /**
+     * drop least recently used windows over the cache size, the last one used is kept.
+     * windows copied from by windows in chain after the one decoded are kept.
+     * @param lastUsers the last window in chain copying from each window.
+     * @param decoded the window in chain just decoded.
+     */
+    private void evict(Map<Integer, Integer> lastUsers, int decoded) {
+        Iterator<Map.Entry<Integer, byte[]>> iterator = cache.entrySet().iterator();
+        while (cachedBytes > maxCachedBytes && cache.size() > 1 && iterator.hasNext()) {
+            Map.Entry<Integer, byte[]> entry = iterator.next();
+            Integer lastUser = lastUsers.get(entry.getKey());
+            if (lastUser != null && lastUser > decoded) {
+                continue;
+            }
+            cachedBytes -= entry.getValue().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * source segment of window, from origin or from the patched data before the window.
+     * @return null if window has no source.
+     */
+    private SeekableStream openSource(int windowNo) throws IOException, PatchException {
+        WindowInfo windowInfo = info.getWindow(windowNo);
+        if (windowInfo.isSourceFromTarget()) {
+            long sourcePos = windowInfo.sourcePos;
+            // xdelta may declare source segment longer than the data available.
+            byte[] sourceData = new byte[(int) Math.min(windowInfo.sourceLength,
+                    windowInfo.targetOffset - sourcePos)];
+            int read = 0;
+            while (read < sourceData.length) {
+                read += readAt(sourcePos + read, sourceData, read, sourceData.length - read);
+            }
+            return new ByteBufferSeekableStream(sourceData, true);
+        }
+        if (!windowInfo.isSourceFromOrigin()) {
+            return null;
+        }
+        if (originStream == null) {
+            throw new PatchException("Source stream required.");
+        }
+        long sourcePos = windowInfo.sourcePos;
+        long originLength = originStream.length();
+        if (sourcePos > originLength) {
+            throw new PatchException("Source segment position out of source stream.");
+        }
+        originStream.seek(sourcePos);
+        return originStream.slice((int) Math.min(windowInfo.sourceLength, originLength - sourcePos));
+    }
+
+    /**
+     * structure of the patch.
+     */
+    public PatchInfo getPatchInfo() {
+        return info;
+    }
+
+    @Override
+    public long length() throws IOException {
+        return info.getTargetLength();
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void write(byte b) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SeekableStream asReadonly() {
+        return this;
+    }
+
+    @Override
+    public SeekableStream slice(int length) throws IOException {
+        return IOUtils.getStreamView(this, length, false);
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return true;
+    }
+
+    /**
+     * close origin and patch streams.
+     */
+    @Override
+    public void close() throws IOException {
+        cache.clear();
+        IOUtils.closeQueitly(originStream);
+        IOUtils.closeQueitly(patchStream);
+    }
+}
@@ -0,0 +1,100 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Temporary file where windows larger than the memory budget are decoded, through memory mapping.
+ * The file is cut into regions, one for each window decoding; regions are reused by later windows,
+ * so the file grows to the largest windows decoding at the same time.
+ * Thread safe.
+ *
+ * @author dongliu
+ */
+class ScratchFile {
+
+    /** windows with target length larger than this are decoded in scratch file. */
+    private final int maxWindowMemory;
+
+    private final File directory;
+
+    private File file;
+    private RandomAccessFile raf;
+    private long fileLength;
+
+    private final LinkedList<Region> freeRegions = new LinkedList<Region>();
+
+    /**
+     * @param directory where the file is created, null for the default temporary directory.
+     */
+    ScratchFile(int maxWindowMemory, File directory) {
+        this.maxWindowMemory = maxWindowMemory;
+        this.directory = directory;
+    }
+
+    /**
+     * if window with target length should be decoded in scratch file.
+     */
+    boolean accepts(int targetLen) {
+        return targetLen > maxWindowMemory;
+    }
+
+    /**
+     * get a region of at least length bytes.
+     */
+    synchronized Region acquire(int length) throws IOException {
+        for (Iterator<Region> iterator = freeRegions.iterator(); iterator.hasNext(); ) {
+            Region region = iterator.next();
+            if (region.buffer.capacity() >= length) {
+                iterator.remove();
+                return region;
+            }
+        }
+        if (raf == null) {
+            file = File.createTempFile("jvcdiff", ".scratch", directory);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+        }
+        raf.setLength(fileLength + length);
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, fileLength, length);
+        fileLength += length;
+        return new Region(buffer);
+    }
+
+    synchronized void release(Region region) {
+        freeRegions.add(region);
+    }
+
+    /**
+     * drop regions and delete the file.
+     */
+    synchronized void close() {
+        freeRegions.clear();
+        if (raf != null) {
+            IOUtils.closeQueitly(raf);
+            raf = null;
+            // the file may not be deleted while mapped on some platforms, deleted on exit then.
+            file.delete();
+            file = null;
+            fileLength = 0;
+        }
+    }
+
+    /**
+     * a mapped region of scratch file.
+     */
+    static class Region {
+        final MappedByteBuffer buffer;
+
+        Region(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+}
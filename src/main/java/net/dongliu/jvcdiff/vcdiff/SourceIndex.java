@@ -0,0 +1,278 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Rolling hash index of source data, for finding matches when encoding.
+ * Source is cut into blocks of BLOCK_SIZE bytes, and the hash of each sampled block is put
+ * into a table. A match of target data with source is found by rolling the hash over target
+ * and looking it up.
+ * For large source only every step-th block is sampled, so the table size is bounded.
+ * Read only after built, can be shared by threads.
+ * An index can be saved to a file and mapped back later, so a source used by many encodes
+ * is indexed once, and the mapped table is shared by all processes using it. The file carries a
+ * crc32 of the whole source, an index is only loaded for the same source data.
+ *
+ * @author dongliu
+ */
+public class SourceIndex {
+
+    /** bytes of a block, also the length of data hashed. */
+    public static final int BLOCK_SIZE = 16;
+
+    /** max slots of hash table. */
+    private static final int MAX_SLOTS = 1 << 22;
+
+    /** multiplier of polynomial hash. */
+    private static final int PRIME = 0x01000193;
+
+    /** PRIME^(BLOCK_SIZE - 1), to remove the outgoing byte when rolling. */
+    private static final int PRIME_POW;
+
+    static {
+        int pow = 1;
+        for (int i = 0; i < BLOCK_SIZE - 1; i++) {
+            pow *= PRIME;
+        }
+        PRIME_POW = pow;
+    }
+
+    private static final int READ_SIZE = 1024 * 1024;
+
+    /** index file: magic "JVCI", version, source length, source checksum, step, slots, then the table. */
+    private static final int MAGIC = 0x4a564349;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+
+    private final long sourceLength;
+
+    /** crc32 of whole source. */
+    private final long checksum;
+
+    /** sample one block in step blocks. */
+    private final int step;
+
+    /** slots of two ints: block hash, block number + 1. 0 block means empty slot. */
+    private final IntBuffer table;
+
+    private final int bits;
+
+    SourceIndex(long sourceLength, long checksum, int step, IntBuffer table) {
+        this.sourceLength = sourceLength;
+        this.checksum = checksum;
+        this.step = step;
+        this.table = table;
+        this.bits = Integer.numberOfTrailingZeros(table.capacity() / 2);
+    }
+
+    /**
+     * index whole source stream, reading from start.
+     * @throws IOException
+     */
+    public static SourceIndex build(SeekableStream source) throws IOException {
+        long sourceLength = source.length();
+        long blocks = sourceLength / BLOCK_SIZE;
+        if (blocks >= Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Source too large to index.");
+        }
+        int step = (int) Math.max(1, (blocks + MAX_SLOTS - 1) / MAX_SLOTS);
+        long sampled = blocks / step;
+        int slots = 1;
+        while (slots < sampled && slots < MAX_SLOTS) {
+            slots <<= 1;
+        }
+        IntBuffer table = IntBuffer.allocate(slots * 2);
+
+        // read whole blocks of source in chunks, hash the sampled ones.
+        int stride = step * BLOCK_SIZE;
+        byte[] buffer = new byte[Math.max(READ_SIZE / stride, 1) * stride];
+        CRC32 crc32 = new CRC32();
+        source.seek(0);
+        long blockNo = 0;
+        int bits = Integer.numberOfTrailingZeros(slots);
+        while (blockNo < blocks) {
+            int length = (int) Math.min(buffer.length, (blocks - blockNo) * BLOCK_SIZE);
+            IOUtils.readFully(source, buffer, 0, length);
+            crc32.update(buffer, 0, length);
+            for (int offset = 0; offset + BLOCK_SIZE <= length; offset += stride) {
+                put(table, bits, hash(buffer, offset), (int) (blockNo + offset / BLOCK_SIZE));
+            }
+            blockNo += length / BLOCK_SIZE;
+        }
+        // the tail shorter than a block.
+        int tail = (int) (sourceLength - blocks * BLOCK_SIZE);
+        IOUtils.readFully(source, buffer, 0, tail);
+        crc32.update(buffer, 0, tail);
+        return new SourceIndex(sourceLength, crc32.getValue(), step, table);
+    }
+
+    /**
+     * map an index saved before.
+     * the index file is checked with source length and crc32 of source, which reads whole source.
+     * @throws IOException if the file is not an index of this source.
+     */
+    public static SourceIndex load(File indexFile, SeekableStream source) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        MappedByteBuffer buffer;
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            IOUtils.closeQueitly(file);
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a source index file.");
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported source index version.");
+        }
+        long sourceLength = buffer.getLong();
+        long checksum = buffer.getLong();
+        int step = buffer.getInt();
+        int slots = buffer.getInt();
+        if (step <= 0 || slots <= 0 || Integer.bitCount(slots) != 1
+                || buffer.capacity() != HEADER_SIZE + (long) slots * 8) {
+            throw new IOException("Corrupted source index file.");
+        }
+        if (sourceLength != source.length() || checksum != checksum(source)) {
+            throw new IOException("Source index file does not match source.");
+        }
+        return new SourceIndex(sourceLength, checksum, step, buffer.slice().asIntBuffer());
+    }
+
+    /**
+     * load the index file of source if it is valid, otherwise build the index and save it.
+     * @throws IOException
+     */
+    public static SourceIndex loadOrBuild(File indexFile, SeekableStream source) throws IOException {
+        if (indexFile.exists()) {
+            try {
+                return load(indexFile, source);
+            } catch (IOException e) {
+                // stale or broken, rebuild it.
+            }
+        }
+        SourceIndex index = build(source);
+        index.save(indexFile, source);
+        return index;
+    }
+
+    /**
+     * save index to file, for {@link #load(File, SeekableStream)}.
+     * the file is written to a temp file then renamed, so other processes never see a partial index.
+     * @param source the source indexed.
+     * @throws IOException
+     */
+    public void save(File indexFile, SeekableStream source) throws IOException {
+        if (source.length() != sourceLength) {
+            throw new IllegalArgumentException("Source is not the source indexed.");
+        }
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(indexFile.getName(), ".tmp", parent);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceLength);
+            out.writeLong(checksum);
+            out.writeInt(step);
+            out.writeInt(table.capacity() / 2);
+            for (int i = 0; i < table.capacity(); i++) {
+                out.writeInt(table.get(i));
+            }
+        } finally {
+            IOUtils.closeQueitly(out);
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+                throw new IOException("Cannot create source index file " + indexFile);
+            }
+        }
+    }
+
+    /**
+     * crc32 of whole source.
+     */
+    private static long checksum(SeekableStream source) throws IOException {
+        long length = source.length();
+        CRC32 crc32 = new CRC32();
+        byte[] buffer = new byte[READ_SIZE];
+        source.seek(0);
+        for (long pos = 0; pos < length; ) {
+            int size = (int) Math.min(buffer.length, length - pos);
+            IOUtils.readFully(source, buffer, 0, size);
+            crc32.update(buffer, 0, size);
+            pos += size;
+        }
+        return crc32.getValue();
+    }
+
+    /**
+     * hash of BLOCK_SIZE bytes from offset.
+     */
+    public static int hash(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            hash = hash * PRIME + (data[i] & 0xff);
+        }
+        return hash;
+    }
+
+    /**
+     * the hash of data moved one byte forward.
+     * @param out the byte at the head of old data
+     * @param in the byte after old data
+     */
+    public static int roll(int hash, byte out, byte in) {
+        return (hash - (out & 0xff) * PRIME_POW) * PRIME + (in & 0xff);
+    }
+
+    private static int slot(int bits, int hash) {
+        return bits == 0 ? 0 : (hash * 0x9E3779B1) >>> (32 - bits);
+    }
+
+    /**
+     * the first block with the hash is kept.
+     */
+    private static void put(IntBuffer table, int bits, int hash, int blockNo) {
+        int slot = slot(bits, hash) << 1;
+        if (table.get(slot + 1) == 0) {
+            table.put(slot, hash);
+            table.put(slot + 1, blockNo + 1);
+        }
+    }
+
+    /**
+     * find a source block with the hash.
+     * the block data may still differ with the same hash, caller should verify.
+     * @return source position of the block, -1 if not found.
+     */
+    public long lookup(int hash) {
+        int slot = slot(bits, hash) << 1;
+        int blockNo = table.get(slot + 1);
+        if (blockNo == 0 || table.get(slot) != hash) {
+            return -1;
+        }
+        return (long) (blockNo - 1) * BLOCK_SIZE;
+    }
+
+    /**
+     * length of source data indexed.
+     */
+    public long getSourceLength() {
+        return sourceLength;
+    }
+}
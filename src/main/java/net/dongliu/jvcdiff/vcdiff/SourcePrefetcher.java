@@ -0,0 +1,295 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Reads source segments of the next windows ahead of decoding, so the decoder finds the source
+ * data of a window in memory instead of waiting for disk.
+ * Windows are known from {@link PatchInfo} of the patch; segments in origin are read with positional
+ * reads of the origin file channel on a thread of its own, or an executor given, into buffers
+ * reused across windows.
+ * Buffers are bounded by bytes, a segment larger than the bound is left to the decoder to read.
+ * Thread safe.
+ *
+ * @author dongliu
+ */
+public class SourcePrefetcher {
+
+    public static final int DEFAULT_READ_AHEAD_WINDOWS = 4;
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+    private final FileChannel originChannel;
+
+    private final PatchInfo patchInfo;
+
+    private final ExecutorService executor;
+
+    /** executor is created here, and shut down when closed. */
+    private final boolean ownExecutor;
+
+    private int readAheadWindows = DEFAULT_READ_AHEAD_WINDOWS;
+
+    private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
+    /** segments reading or read, by window number. */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    /** the next window to read ahead. */
+    private int nextWindow;
+
+    /** buffers not in use, and bytes of all buffers. */
+    private final LinkedList<byte[]> freeBuffers = new LinkedList<byte[]>();
+    private long bufferedBytes;
+
+    /**
+     * read source segments on a daemon thread owned by the prefetcher, stopped when closed.
+     * @param originChannel channel of origin file, only positional reads are used on it.
+     * @param patchInfo structure of the patch to decode.
+     */
+    public SourcePrefetcher(FileChannel originChannel, PatchInfo patchInfo) {
+        this(originChannel, patchInfo, Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "vcdiff-source-prefetcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), true);
+    }
+
+    /**
+     * @param originChannel channel of origin file, only positional reads are used on it.
+     * @param patchInfo structure of the patch to decode.
+     * @param executor executor to read source segments. it should not be the one decoding windows,
+     *                 or reads queue behind decode tasks and the decoder waits for them.
+     */
+    public SourcePrefetcher(FileChannel originChannel, PatchInfo patchInfo, ExecutorService executor) {
+        this(originChannel, patchInfo, executor, false);
+    }
+
+    private SourcePrefetcher(FileChannel originChannel, PatchInfo patchInfo, ExecutorService executor,
+                             boolean ownExecutor) {
+        this.originChannel = originChannel;
+        this.patchInfo = patchInfo;
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+    }
+
+    /**
+     * how many windows after the one decoding are read ahead, default 4.
+     */
+    public void setReadAheadWindows(int readAheadWindows) {
+        this.readAheadWindows = readAheadWindows;
+    }
+
+    /**
+     * max bytes of buffers for source segments, default 64M.
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * get source data of window, and read ahead the following windows.
+     * the stream returned should be closed after decoding, so its buffer is reused.
+     * @param sourcePos source segment position of the window.
+     * @param length bytes of source segment available in origin.
+     * @return null if the segment is not read ahead, the caller should read it.
+     */
+    SeekableStream take(int windowNo, long sourcePos, int length) throws IOException {
+        Segment segment;
+        List<Segment> passed;
+        synchronized (this) {
+            nextWindow = Math.max(nextWindow, windowNo);
+            schedule(windowNo);
+            segment = segments.remove(windowNo);
+            // windows before are not decoding any more.
+            Map<Integer, Segment> head = segments.headMap(windowNo);
+            passed = new ArrayList<Segment>(head.values());
+            head.clear();
+        }
+        for (Segment passedSegment : passed) {
+            try {
+                await(passedSegment);
+                release(passedSegment.buffer);
+            } catch (IOException ignore) {
+            }
+        }
+        if (segment == null) {
+            return null;
+        }
+        await(segment);
+        if (segment.pos != sourcePos || segment.length != length) {
+            // patch is not the one read ahead for.
+            release(segment.buffer);
+            return null;
+        }
+        return new SegmentStream(segment.buffer, length);
+    }
+
+    /**
+     * wait until segment is read. the buffer is released if read failed.
+     */
+    private void await(Segment segment) throws IOException {
+        try {
+            segment.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading source.");
+        } catch (ExecutionException e) {
+            release(segment.buffer);
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Reading source failed.", cause);
+        }
+    }
+
+    /**
+     * start reading segments of windows after the one decoding, as buffers allow.
+     */
+    private void schedule(int windowNo) throws IOException {
+        int end = Math.min(patchInfo.getWindowCount(), windowNo + readAheadWindows + 1);
+        long originLength = originChannel.size();
+        for (; nextWindow < end; nextWindow++) {
+            WindowInfo window = patchInfo.getWindow(nextWindow);
+            if (!window.isSourceFromOrigin() || window.sourcePos >= originLength) {
+                continue;
+            }
+            // xdelta may declare source segment longer than the data available.
+            int length = (int) Math.min(window.sourceLength, originLength - window.sourcePos);
+            if (length > maxBufferedBytes) {
+                continue;
+            }
+            byte[] buffer = allocate(length);
+            if (buffer == null) {
+                // try again when some buffers are released.
+                return;
+            }
+            segments.put(nextWindow, new Segment(window.sourcePos, length, buffer,
+                    executor.submit(new ReadTask(window.sourcePos, length, buffer))));
+        }
+    }
+
+    /**
+     * a buffer of at least length bytes, null if buffers are used up.
+     */
+    private byte[] allocate(int length) {
+        for (Iterator<byte[]> iterator = freeBuffers.iterator(); iterator.hasNext(); ) {
+            byte[] buffer = iterator.next();
+            if (buffer.length >= length) {
+                iterator.remove();
+                return buffer;
+            }
+        }
+        // drop free buffers too small to make room.
+        while (bufferedBytes + length > maxBufferedBytes && !freeBuffers.isEmpty()) {
+            bufferedBytes -= freeBuffers.removeFirst().length;
+        }
+        if (bufferedBytes + length > maxBufferedBytes) {
+            return null;
+        }
+        bufferedBytes += length;
+        return new byte[length];
+    }
+
+    private synchronized void release(byte[] buffer) {
+        freeBuffers.add(buffer);
+    }
+
+    /**
+     * stop reading ahead, and drop buffers. the thread of the prefetcher is stopped if it has one,
+     * and it can not be used again.
+     */
+    public synchronized void close() {
+        for (Segment segment : segments.values()) {
+            // not interrupted, which would close the origin channel.
+            segment.future.cancel(false);
+        }
+        if (ownExecutor) {
+            executor.shutdown();
+        }
+        segments.clear();
+        freeBuffers.clear();
+        bufferedBytes = 0;
+        nextWindow = 0;
+    }
+
+    private static class Segment {
+        private final long pos;
+        private final int length;
+        private final byte[] buffer;
+        private final Future<Void> future;
+
+        Segment(long pos, int length, byte[] buffer, Future<Void> future) {
+            this.pos = pos;
+            this.length = length;
+            this.buffer = buffer;
+            this.future = future;
+        }
+    }
+
+    private class ReadTask implements Callable<Void> {
+        private final long pos;
+        private final int length;
+        private final byte[] buffer;
+
+        ReadTask(long pos, int length, byte[] buffer) {
+            this.pos = pos;
+            this.length = length;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+            while (target.hasRemaining()) {
+                if (originChannel.read(target, pos + target.position()) < 0) {
+                    throw new IOException("Unexpected end of origin.");
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * source data in a read ahead buffer, the buffer is reused after close.
+     */
+    private class SegmentStream extends ByteBufferSeekableStream {
+        private byte[] buffer;
+
+        SegmentStream(byte[] buffer, int length) {
+            super(ByteBuffer.wrap(buffer, 0, length).slice());
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (buffer != null) {
+                release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.io.PositionalReadable;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+
+import java.io.IOException;
+
+/**
+ * Compares target data with source data, for verifying and extending matches.
+ * Source is read in chunks and the last chunk is cached.
+ * The source stream may be shared by readers of other threads. A {@link PositionalReadable} source,
+ * e.g. a file or a byte buffer, is read without locking; other sources are read with seeks
+ * synchronized on the stream.
+ *
+ * @author dongliu
+ */
+class SourceReader {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final SeekableStream source;
+
+    private final long sourceLength;
+
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    /** source data in [chunkPos, chunkPos + chunkLen) is in chunk. */
+    private long chunkPos;
+    private int chunkLen;
+
+    SourceReader(SeekableStream source, long sourceLength) {
+        this.source = source;
+        this.sourceLength = sourceLength;
+    }
+
+    /**
+     * count bytes equal from sourcePos and target[targetPos] forward.
+     * @param maxLength compare at most maxLength bytes.
+     */
+    int matchForward(long sourcePos, byte[] target, int targetPos, int maxLength) throws IOException {
+        maxLength = (int) Math.min(maxLength, sourceLength - sourcePos);
+        int length = 0;
+        while (length < maxLength) {
+            load(sourcePos + length);
+            int offset = (int) (sourcePos + length - chunkPos);
+            int end = Math.min(chunkLen, offset + maxLength - length);
+            for (; offset < end; offset++, length++) {
+                if (chunk[offset] != target[targetPos + length]) {
+                    return length;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * count bytes equal before sourcePos and target[targetPos] backward.
+     * @param maxLength compare at most maxLength bytes.
+     */
+    int matchBackward(long sourcePos, byte[] target, int targetPos, int maxLength) throws IOException {
+        maxLength = (int) Math.min(maxLength, sourcePos);
+        int length = 0;
+        while (length < maxLength) {
+            load(sourcePos - length - 1);
+            int offset = (int) (sourcePos - length - 1 - chunkPos);
+            int end = Math.max(-1, offset - (maxLength - length));
+            for (; offset > end; offset--, length++) {
+                if (chunk[offset] != target[targetPos - length - 1]) {
+                    return length;
+                }
+            }
+        }
+        return length;
+    }
+
+    /**
+     * make sure the chunk contains pos.
+     */
+    private void load(long pos) throws IOException {
+        if (pos >= chunkPos && pos < chunkPos + chunkLen) {
+            return;
+        }
+        chunkPos = pos - pos % CHUNK_SIZE;
+        chunkLen = (int) Math.min(CHUNK_SIZE, sourceLength - chunkPos);
+        if (source instanceof PositionalReadable) {
+            PositionalReadable readable = (PositionalReadable) source;
+            for (int offset = 0; offset < chunkLen; ) {
+                int size = readable.read(chunkPos + offset, chunk, offset, chunkLen - offset);
+                if (size < 0) {
+                    throw new IOException("Unexpected end of source.");
+                }
+                offset += size;
+            }
+            return;
+        }
+        synchronized (source) {
+            source.seek(chunkPos);
+            IOUtils.readFully(source, chunk, 0, chunkLen);
+        }
+    }
+}
@@ -1,7 +1,5 @@
 package net.dongliu.jvcdiff.vcdiff;
 
-import net.dongliu.jvcdiff.vcdiff.codetable.Instruction;
-import net.dongliu.jvcdiff.vcdiff.codetable.Instruction.InstructionType;
 import net.dongliu.jvcdiff.vcdiff.codetable.AddressCache;
 import net.dongliu.jvcdiff.vcdiff.codetable.CodeTable;
 import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
@@ -9,34 +7,220 @@ import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
 import net.dongliu.jvcdiff.vcdiff.io.FileSeekableStream;
 import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
 import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.io.MappedFileSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.OutputSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.PatchReader;
+import net.dongliu.jvcdiff.vcdiff.secondary.SecondaryCompressors;
+import net.dongliu.jvcdiff.vcdiff.secondary.SecondaryDecompressor;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
 
 /**
  * vcdiff decode.
+ * A decoder can be reset and reused for other patches, keeping its buffers,
+ * see {@link DecoderPool}. Once the buffers are grown, windows decoded sequentially allocate no
+ * data buffers, only small objects such as source views; windows decoded concurrently allocate
+ * an address cache each too.
  *
  * @author dongliu
  *
  */
 public class VcdiffDecoder {
 
+    private static final DecoderPool pool = new DecoderPool();
+
+    /** marks the end of windows in pipeline queues. */
+    private static final DeltaWindow END_OF_WINDOWS = new DeltaWindow();
+
     private SeekableStream originStream;
 
-    private InputStream patchStream;
+    private PatchReader patchReader;
 
     private SeekableStream targetStream;
 
     /** code table */
     private CodeTable codeTable = CodeTable.Default;
 
-    private AddressCache cache = new AddressCache(4, 3);
+    private final AddressCache defaultCache = new AddressCache(4, 3);
+
+    private AddressCache cache = defaultCache;
+
+    /** secondary decompressor of current patch, null if sections are not compressed. */
+    private SecondaryDecompressor decompressor;
+
+    /** current window, its buffers are reused. */
+    private final DeltaWindow window = new DeltaWindow();
+
+    /** reads source segments ahead, may be null. */
+    private SourcePrefetcher prefetcher;
+
+    /** windows whose source opened, windows are opened in patch order. */
+    private int openedWindows;
+
+    private boolean verifyChecksum = true;
+
+    public static final int DEFAULT_MAX_WINDOW_MEMORY = 64 * 1024 * 1024;
+
+    /** windows larger than this are decoded in scratch file. */
+    private int maxWindowMemory = DEFAULT_MAX_WINDOW_MEMORY;
+    private File scratchDirectory;
+    private ScratchFile scratch;
+
+    /** pool of direct buffers windows are decoded in, null to decode in heap. */
+    private DirectBufferPool bufferPool;
+
+    /** digest of all target data, may be null. */
+    private MessageDigest digest;
+
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 64 * 1024 * 1024;
+
+    /** receives checkpoints, null if checkpoints are not taken. */
+    private CheckpointListener checkpointListener;
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    /** patch header settings, and progress of writing target, for checkpoints. */
+    private int headerLength;
+    private int secondaryCompressorId;
+    private long patchLength;
+    private int writtenWindows;
+    private long writtenLength;
+    private long writtenChecksum;
+    private long checkpointLength;
+
+    /**
+     * Constructs an unbound decoder, call reset before decode.
+     */
+    public VcdiffDecoder() {
+    }
 
     public VcdiffDecoder(SeekableStream originStream, InputStream patchStream, SeekableStream targetStream) {
+        this(originStream, new PatchReader(patchStream), targetStream);
+    }
+
+    public VcdiffDecoder(SeekableStream originStream, PatchReader patchReader, SeekableStream targetStream) {
         this.originStream = originStream;
-        this.patchStream = patchStream;
+        this.patchReader = patchReader;
         this.targetStream = targetStream;
     }
 
+    /**
+     * bind the decoder to other streams, buffers are kept.
+     */
+    public void reset(SeekableStream originStream, InputStream patchStream, SeekableStream targetStream) {
+        reset(originStream, Channels.newChannel(patchStream), targetStream);
+    }
+
+    /**
+     * bind the decoder to other streams, buffers are kept.
+     */
+    public void reset(SeekableStream originStream, ReadableByteChannel patchChannel,
+                      SeekableStream targetStream) {
+        this.originStream = originStream;
+        if (patchReader == null) {
+            patchReader = new PatchReader(patchChannel);
+        } else {
+            patchReader.reset(patchChannel);
+        }
+        this.targetStream = targetStream;
+        this.prefetcher = null;
+        this.digest = null;
+        this.checkpointListener = null;
+    }
+
+    /**
+     * drop references to streams of last patch, so that an idle decoder holds only buffers.
+     */
+    void unbind() {
+        this.originStream = null;
+        this.targetStream = null;
+        this.prefetcher = null;
+        this.digest = null;
+        this.checkpointListener = null;
+        if (patchReader != null) {
+            patchReader.detach();
+        }
+    }
+
+
+    /**
+     * read source segments of windows ahead of decoding, for patches of origin files.
+     * the prefetcher should be made for the patch decoding, and is dropped on reset.
+     */
+    public void setSourcePrefetcher(SourcePrefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * check adler32 checksums of windows which have one, as xdelta3 writes. default true.
+     * a window mismatch fails decoding with PatchException.
+     */
+    public void setVerifyChecksum(boolean verifyChecksum) {
+        this.verifyChecksum = verifyChecksum;
+    }
+
+    /**
+     * memory budget of a window: windows with target length larger than this are decoded in
+     * a memory mapped scratch file instead of heap, and delta data larger than this is read into
+     * the scratch file instead of the patch buffer. default {@link #DEFAULT_MAX_WINDOW_MEMORY},
+     * so a window declaring a huge length does not take that much heap; Integer.MAX_VALUE for no limit.
+     */
+    public void setMaxWindowMemory(int maxWindowMemory) {
+        this.maxWindowMemory = maxWindowMemory;
+    }
+
+    /**
+     * directory of scratch file for large windows, default the temporary directory.
+     */
+    public void setScratchDirectory(File scratchDirectory) {
+        this.scratchDirectory = scratchDirectory;
+    }
+
+    /**
+     * decode windows into direct buffers from pool instead of heap, and write them without copy
+     * to targets implementing {@link net.dongliu.jvcdiff.vcdiff.io.BufferWritable}.
+     * the pool may be shared by decoders.
+     * default null, windows are decoded in heap.
+     */
+    public void setDirectBufferPool(DirectBufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * update digest with all target data as it is written, e.g. a SHA-256 digest to compare with
+     * the expected one after decoding. it is dropped on reset.
+     */
+    public void setDigest(MessageDigest digest) {
+        this.digest = digest;
+    }
+
+    /**
+     * take checkpoints at window boundaries, from which decoding can be resumed by
+     * {@link #resume(Checkpoint)} if interrupted. it is dropped on reset.
+     */
+    public void setCheckpointListener(CheckpointListener checkpointListener) {
+        this.checkpointListener = checkpointListener;
+    }
+
+    /**
+     * bytes of target written between checkpoints, default 64M.
+     * a checkpoint is taken after the first window which makes it reach the interval.
+     */
+    public void setCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
 
     /**
      * Convenient static method for caller.Apply vcdiff patch file to originFile.
@@ -49,14 +233,182 @@ public class VcdiffDecoder {
     public static void patch(RandomAccessFile originFile, File patchFile, RandomAccessFile targetFile)
             throws IOException, PatchException {
         SeekableStream originStream = new FileSeekableStream(originFile, true);
-        InputStream patchStream = new FileInputStream(patchFile);
+        ReadableByteChannel patchChannel = new FileInputStream(patchFile).getChannel();
+        SeekableStream targetStream = new FileSeekableStream(targetFile);
+        VcdiffDecoder decoder = pool.borrow();
+        try {
+            decoder.reset(originStream, patchChannel, targetStream);
+            decoder.decode();
+        } finally {
+            pool.release(decoder);
+            // close xxxx
+            IOUtils.closeQueitly(originStream);
+            IOUtils.closeQueitly(patchChannel);
+            IOUtils.closeQueitly(targetStream);
+        }
+    }
+
+    /**
+     * Convenient static method for caller.Apply vcdiff patch file to originFile, resumable.
+     * Checkpoints are saved to checkpoint file as target is written, the target file is synced
+     * before each save. If checkpoint file exists, decoding resumes from it, so an interrupted patch
+     * is continued by calling this again with the same files. Checkpoint file is deleted when done.
+     * @param originFile the old file.
+     * @param patchFile the patch file.
+     * @param targetFile the patch result file.
+     * @param checkpointFile file to save checkpoints.
+     * @param checkpointInterval bytes of target written between checkpoints.
+     * @throws IOException
+     * @throws PatchException
+     */
+    public static void patch(RandomAccessFile originFile, File patchFile, final RandomAccessFile targetFile,
+                             final File checkpointFile, long checkpointInterval)
+            throws IOException, PatchException {
+        Checkpoint checkpoint = checkpointFile.exists() ? Checkpoint.load(checkpointFile) : null;
+        if (checkpoint != null && targetFile.length() > checkpoint.getTargetOffset()) {
+            // drop data written after checkpoint.
+            targetFile.setLength(checkpoint.getTargetOffset());
+        }
+        SeekableStream originStream = new FileSeekableStream(originFile, true);
+        ReadableByteChannel patchChannel = new FileInputStream(patchFile).getChannel();
         SeekableStream targetStream = new FileSeekableStream(targetFile);
+        VcdiffDecoder decoder = pool.borrow();
         try {
-            decode(originStream, patchStream, targetStream);
+            decoder.reset(originStream, patchChannel, targetStream);
+            decoder.setCheckpointInterval(checkpointInterval);
+            decoder.setCheckpointListener(new CheckpointListener() {
+                @Override
+                public void checkpoint(Checkpoint checkpoint) throws IOException {
+                    targetFile.getChannel().force(false);
+                    checkpoint.save(checkpointFile);
+                }
+            });
+            if (checkpoint == null) {
+                decoder.decode();
+            } else {
+                decoder.resume(checkpoint);
+            }
         } finally {
+            pool.release(decoder);
             // close xxxx
             IOUtils.closeQueitly(originStream);
+            IOUtils.closeQueitly(patchChannel);
+            IOUtils.closeQueitly(targetStream);
+        }
+        checkpointFile.delete();
+    }
+
+    /**
+     * Convenient static method for caller.Apply vcdiff patch file to file in place, the file is
+     * overwritten by patch result, without a separate target file.
+     * Origin data which windows overwrite and later windows copy from is preserved in memory; the
+     * memory needed is planned from the patch before the file is touched.
+     * An interrupted in-place patch leaves the file neither origin nor target.
+     * @param file the old file, becomes the patch result.
+     * @param patchFile the patch file.
+     * @param maxScratchBytes max bytes of origin data preserved in memory.
+     * @throws IOException
+     * @throws PatchException if patch is invalid, or needs more than maxScratchBytes, in which
+     *                        case the file is untouched.
+     */
+    public static void patchInPlace(RandomAccessFile file, File patchFile, long maxScratchBytes)
+            throws IOException, PatchException {
+        PatchInfo patchInfo;
+        SeekableStream patchStream = new FileSeekableStream(new RandomAccessFile(patchFile, "r"), true);
+        try {
+            patchInfo = PatchInfo.read(patchStream);
+        } finally {
             IOUtils.closeQueitly(patchStream);
+        }
+        InPlaceFile inPlaceFile = new InPlaceFile(file, patchInfo);
+        if (inPlaceFile.getScratchBytes() > maxScratchBytes) {
+            throw new PatchException("In-place patch needs " + inPlaceFile.getScratchBytes()
+                    + " bytes of scratch, exceeds limit " + maxScratchBytes + ".");
+        }
+        ReadableByteChannel patchChannel = new FileInputStream(patchFile).getChannel();
+        VcdiffDecoder decoder = pool.borrow();
+        try {
+            decoder.reset(inPlaceFile.origin(), patchChannel, inPlaceFile.target());
+            decoder.decode();
+            inPlaceFile.truncate();
+        } finally {
+            pool.release(decoder);
+            IOUtils.closeQueitly(patchChannel);
+        }
+    }
+
+    /**
+     * Convenient static method for caller.Apply vcdiff patch file to originFile,
+     * windows are decoded concurrently on executor, and source of following windows is read ahead
+     * on a thread of its own, so reads do not queue behind decode tasks.
+     * @param originFile the old file.
+     * @param patchFile the patch file.
+     * @param targetFile the patch result file.
+     * @param executor the executor to decode windows.
+     * @throws IOException
+     * @throws PatchException
+     * @see #decode(ExecutorService, int)
+     */
+    public static void patch(RandomAccessFile originFile, File patchFile, RandomAccessFile targetFile,
+                             ExecutorService executor) throws IOException, PatchException {
+        SeekableStream originStream = new FileSeekableStream(originFile, true);
+        ReadableByteChannel patchChannel = new FileInputStream(patchFile).getChannel();
+        SeekableStream targetStream = new FileSeekableStream(targetFile);
+        VcdiffDecoder decoder = pool.borrow();
+        SourcePrefetcher prefetcher = null;
+        try {
+            SeekableStream patchStream = new FileSeekableStream(new RandomAccessFile(patchFile, "r"), true);
+            try {
+                prefetcher = new SourcePrefetcher(originFile.getChannel(), PatchInfo.read(patchStream));
+            } finally {
+                IOUtils.closeQueitly(patchStream);
+            }
+            decoder.reset(originStream, patchChannel, targetStream);
+            decoder.setSourcePrefetcher(prefetcher);
+            decoder.decode(executor, Runtime.getRuntime().availableProcessors() * 2);
+        } finally {
+            if (prefetcher != null) {
+                prefetcher.close();
+            }
+            pool.release(decoder);
+            // close xxxx
+            IOUtils.closeQueitly(originStream);
+            IOUtils.closeQueitly(patchChannel);
+            IOUtils.closeQueitly(targetStream);
+        }
+    }
+
+    /**
+     * Convenient static method for caller.Apply vcdiff patch file to originFile.
+     * The target file is preallocated to the target length in patch and mapped to memory, windows are
+     * decoded straight into the mapping, and windows using target data as source read it from the mapping.
+     * @param originFile the old file.
+     * @param patchFile the patch file.
+     * @param targetFile the patch result file, overwritten.
+     * @throws IOException
+     * @throws PatchException
+     */
+    public static void patchMapped(RandomAccessFile originFile, File patchFile, File targetFile)
+            throws IOException, PatchException {
+        long targetLength;
+        SeekableStream patchStream = new FileSeekableStream(new RandomAccessFile(patchFile, "r"), true);
+        try {
+            targetLength = PatchInfo.read(patchStream).getTargetLength();
+        } finally {
+            IOUtils.closeQueitly(patchStream);
+        }
+        SeekableStream originStream = new FileSeekableStream(originFile, true);
+        ReadableByteChannel patchChannel = new FileInputStream(patchFile).getChannel();
+        SeekableStream targetStream = null;
+        VcdiffDecoder decoder = pool.borrow();
+        try {
+            targetStream = new MappedFileSeekableStream(new RandomAccessFile(targetFile, "rw"), targetLength);
+            decoder.reset(originStream, patchChannel, targetStream);
+            decoder.decode();
+        } finally {
+            pool.release(decoder);
+            IOUtils.closeQueitly(originStream);
+            IOUtils.closeQueitly(patchChannel);
             IOUtils.closeQueitly(targetStream);
         }
     }
@@ -71,8 +423,43 @@ public class VcdiffDecoder {
      */
     public static void decode(SeekableStream originStream, InputStream patchStream, SeekableStream targetStream)
             throws IOException, PatchException {
-        VcdiffDecoder decoder = new VcdiffDecoder(originStream, patchStream, targetStream);
-        decoder.decode();
+        VcdiffDecoder decoder = pool.borrow();
+        try {
+            decoder.reset(originStream, patchStream, targetStream);
+            decoder.decode();
+        } finally {
+            pool.release(decoder);
+        }
+    }
+
+    /**
+     * Convenient static method for caller.Apply vcdiff patch, and stream the result to an output stream.
+     * Only the last {@link OutputSeekableStream#DEFAULT_HISTORY_SIZE} bytes of target are kept
+     * for windows using target data as source.
+     * @param originStream the inputstrem of origin file.
+     * @param patchStream the patch file stream.
+     * @param targetStream the output stream of result, not closed by this method.
+     * @throws IOException
+     * @throws PatchException
+     */
+    public static void decode(SeekableStream originStream, InputStream patchStream, OutputStream targetStream)
+            throws IOException, PatchException {
+        decode(originStream, patchStream, new OutputSeekableStream(targetStream));
+    }
+
+    /**
+     * Convenient static method for caller.Apply vcdiff patch, and stream the result to a channel.
+     * Only the last {@link OutputSeekableStream#DEFAULT_HISTORY_SIZE} bytes of target are kept
+     * for windows using target data as source.
+     * @param originStream the inputstrem of origin file.
+     * @param patchStream the patch file stream.
+     * @param targetChannel the channel of result, not closed by this method.
+     * @throws IOException
+     * @throws PatchException
+     */
+    public static void decode(SeekableStream originStream, InputStream patchStream,
+                              WritableByteChannel targetChannel) throws IOException, PatchException {
+        decode(originStream, patchStream, new OutputSeekableStream(targetChannel));
     }
 
     /**
@@ -82,11 +469,370 @@ public class VcdiffDecoder {
      */
     public void decode() throws IOException, PatchException {
         readHeader();
-        while (decodeWindow());
+        openScratch();
+        try {
+            while (decodeWindow());
+        } finally {
+            // the window keeps its scratch regions if decoding failed.
+            window.release();
+            closeScratch();
+        }
+    }
+
+    /**
+     * continue decoding an interrupted patch from checkpoint, windows are decoded as by {@link #decode()}.
+     * Patch is read from the start and the windows before checkpoint are skipped, checking patch
+     * data before checkpoint is the same as when it was taken. Target should hold the data written
+     * before checkpoint, e.g. the target file of the interrupted decoding; it is read back and
+     * checked against the checkpoint, and used to update digest if one is set.
+     * @throws IOException
+     * @throws PatchException if checkpoint is not of the patch, or target does not match it.
+     */
+    public void resume(Checkpoint checkpoint) throws IOException, PatchException {
+        patchReader.startChecksum();
+        readHeader();
+        skipTo(checkpoint);
+        openScratch();
+        try {
+            while (decodeWindow());
+        } finally {
+            // the window keeps its scratch regions if decoding failed.
+            window.release();
+            closeScratch();
+        }
+    }
+
+    /**
+     * skip patch and target to checkpoint, after header is read.
+     */
+    private void skipTo(Checkpoint checkpoint) throws IOException, PatchException {
+        if (checkpoint.getHeaderLength() != headerLength || checkpoint.getNearSize() != cache.getNearSize()
+                || checkpoint.getSameSize() != cache.getSameSize()
+                || checkpoint.getSecondaryCompressorId() != secondaryCompressorId
+                || checkpoint.getPatchOffset() < headerLength
+                || checkpoint.getPatchLength() >= 0 && patchLength >= 0
+                && checkpoint.getPatchLength() != patchLength) {
+            throw new PatchException("Checkpoint is not of this patch.");
+        }
+        long targetOffset = checkpoint.getTargetOffset();
+        if (targetStream.length() < targetOffset) {
+            throw new PatchException("Target is shorter than checkpoint.");
+        }
+        try {
+            patchReader.skip(checkpoint.getPatchOffset() - patchReader.position());
+        } catch (IndexOutOfBoundsException e) {
+            throw new PatchException("Checkpoint is not of this patch.");
+        }
+        if (patchReader.checksum() != checkpoint.getPatchChecksum()) {
+            throw new PatchException("Checkpoint is not of this patch.");
+        }
+        Adler32 adler32 = new Adler32();
+        byte[] buffer = new byte[64 * 1024];
+        targetStream.seek(0);
+        for (long pos = 0; pos < targetOffset; ) {
+            int size = (int) Math.min(buffer.length, targetOffset - pos);
+            IOUtils.readFully(targetStream, buffer, 0, size);
+            adler32.update(buffer, 0, size);
+            if (digest != null) {
+                digest.update(buffer, 0, size);
+            }
+            pos += size;
+        }
+        if (adler32.getValue() != checkpoint.getTargetChecksum()) {
+            throw new PatchException("Target data does not match checkpoint.");
+        }
+        targetStream.seek(targetOffset);
+        openedWindows = checkpoint.getWindowCount();
+        writtenWindows = checkpoint.getWindowCount();
+        writtenLength = targetOffset;
+        writtenChecksum = checkpoint.getTargetChecksum();
+        checkpointLength = targetOffset;
+    }
+
+    /**
+     * do vcdiff decode, windows are decoded concurrently.
+     * Windows using origin data or no source data do not depend on each other, they are
+     * decoded on executor; windows using target data as source wait until all previous
+     * windows are written, and are decoded in current thread.
+     * Target data is always written in order by current thread.
+     * @param executor any executor service, e.g. a thread pool or a ForkJoinPool.
+     * @param maxPendingWindows max windows decoding or waiting to be written,
+     *                          this bounds the memory used.
+     * @throws IOException
+     * @throws PatchException
+     */
+    public void decode(ExecutorService executor, int maxPendingWindows) throws IOException, PatchException {
+        readHeader();
+        openScratch();
+        try {
+            decodeWindows(executor, maxPendingWindows);
+        } finally {
+            closeScratch();
+        }
+    }
+
+    private void decodeWindows(ExecutorService executor, int maxPendingWindows)
+            throws IOException, PatchException {
+        LinkedList<Future<DeltaWindow>> pending = new LinkedList<Future<DeltaWindow>>();
+        // windows already written, for reuse.
+        LinkedList<DeltaWindow> idle = new LinkedList<DeltaWindow>();
+        idle.add(window);
+        try {
+            while (true) {
+                DeltaWindow window = idle.isEmpty() ? new DeltaWindow() : idle.removeFirst();
+                if (!window.read(patchReader, decompressor, scratch)) {
+                    break;
+                }
+                if (window.indicator == DeltaWindow.VCD_TARGET) {
+                    // source data is in target, all previous windows should be written first.
+                    while (!pending.isEmpty()) {
+                        idle.add(writeWindow(await(pending.removeFirst())));
+                    }
+                    SeekableStream sourceData = openSource(window);
+                    try {
+                        window.decode(codeTable, cache, sourceData, scratch, bufferPool);
+                    } finally {
+                        IOUtils.closeQueitly(sourceData);
+                    }
+                    if (verifyChecksum) {
+                        window.verify();
+                    }
+                    idle.add(writeWindow(window));
+                } else {
+                    // sections should outlive the patch buffer.
+                    window.detach();
+                    AddressCache windowCache = new AddressCache(cache.getNearSize(), cache.getSameSize());
+                    pending.add(executor.submit(new WindowTask(window, codeTable, windowCache,
+                            openSource(window), scratch, bufferPool, verifyChecksum)));
+                    if (pending.size() >= maxPendingWindows) {
+                        idle.add(writeWindow(await(pending.removeFirst())));
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                idle.add(writeWindow(await(pending.removeFirst())));
+            }
+        } finally {
+            for (Future<DeltaWindow> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * do vcdiff decode in a pipeline of three stages: reading windows from patch, executing
+     * instructions, and writing target data. Reading and writing run on executor, instructions
+     * are executed in current thread, so that patch and target io overlap with decoding.
+     * Windows using target data as source wait until all previous windows are written.
+     * @param executor executor for the read and write stage, needs two threads.
+     * @param bufferedWindows windows buffered between stages, this bounds the memory used.
+     * @throws IOException
+     * @throws PatchException
+     */
+    public void decodePipelined(ExecutorService executor, int bufferedWindows)
+            throws IOException, PatchException {
+        readHeader();
+        openScratch();
+        try {
+            decodeWindowsPipelined(executor, bufferedWindows);
+        } finally {
+            closeScratch();
+        }
+    }
+
+    private void decodeWindowsPipelined(ExecutorService executor, int bufferedWindows)
+            throws IOException, PatchException {
+        // windows buffers go around: free -> read -> decoded -> free
+        final BlockingQueue<DeltaWindow> free = new ArrayBlockingQueue<DeltaWindow>(bufferedWindows);
+        // one more slot for the end mark from each of reader and writer
+        final BlockingQueue<DeltaWindow> read = new ArrayBlockingQueue<DeltaWindow>(bufferedWindows + 2);
+        final BlockingQueue<DeltaWindow> decoded = new ArrayBlockingQueue<DeltaWindow>(bufferedWindows + 1);
+        free.add(window);
+        for (int i = 1; i < bufferedWindows; i++) {
+            free.add(new DeltaWindow());
+        }
+        final WriteProgress progress = new WriteProgress();
+
+        Future<Void> reader = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    while (true) {
+                        DeltaWindow window = free.take();
+                        if (!window.read(patchReader, decompressor, scratch)) {
+                            return null;
+                        }
+                        // sections should outlive the patch buffer.
+                        window.detach();
+                        read.put(window);
+                    }
+                } finally {
+                    read.offer(END_OF_WINDOWS);
+                }
+            }
+        });
+        Future<Void> writer = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                try {
+                    while (true) {
+                        DeltaWindow window = decoded.take();
+                        if (window == END_OF_WINDOWS) {
+                            return null;
+                        }
+                        writeWindow(window);
+                        progress.written();
+                        free.offer(window);
+                    }
+                } finally {
+                    progress.stop();
+                    // wake up decoding thread if writer failed.
+                    read.offer(END_OF_WINDOWS);
+                }
+            }
+        });
+
+        try {
+            long applied = 0;
+            while (true) {
+                DeltaWindow window = read.take();
+                if (window == END_OF_WINDOWS) {
+                    break;
+                }
+                // source data is in target, all previous windows should be written first.
+                if (window.indicator == DeltaWindow.VCD_TARGET && !progress.await(applied)) {
+                    break;
+                }
+                SeekableStream sourceData = openSource(window);
+                try {
+                    window.decode(codeTable, cache, sourceData, scratch, bufferPool);
+                } finally {
+                    IOUtils.closeQueitly(sourceData);
+                }
+                if (verifyChecksum) {
+                    window.verify();
+                }
+                decoded.put(window);
+                applied++;
+            }
+            decoded.put(END_OF_WINDOWS);
+            await(writer);
+            await(reader);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while decoding.");
+        } finally {
+            reader.cancel(true);
+            writer.cancel(true);
+        }
+    }
+
+    /**
+     * count of windows written by the write stage of pipeline.
+     */
+    private static class WriteProgress {
+        private long written;
+        private boolean stopped;
+
+        synchronized void written() {
+            written++;
+            notifyAll();
+        }
+
+        synchronized void stop() {
+            stopped = true;
+            notifyAll();
+        }
+
+        /**
+         * wait until count windows are written.
+         * @return false if write stage stopped before that.
+         */
+        synchronized boolean await(long count) throws InterruptedException {
+            while (written < count && !stopped) {
+                wait();
+            }
+            return written >= count;
+        }
     }
 
-    private void readHeader() throws IOException, PatchException {
-        byte[] magic = IOUtils.readBytes(patchStream, 4);
+    private static <T> T await(Future<T> future) throws IOException, PatchException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for window decoding.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof PatchException) {
+                throw (PatchException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * decode one window on executor.
+     */
+    private static class WindowTask implements Callable<DeltaWindow> {
+        private final DeltaWindow window;
+        private final CodeTable codeTable;
+        private final AddressCache cache;
+        private final SeekableStream sourceData;
+        private final ScratchFile scratch;
+        private final DirectBufferPool bufferPool;
+        private final boolean verifyChecksum;
+
+        WindowTask(DeltaWindow window, CodeTable codeTable, AddressCache cache, SeekableStream sourceData,
+                   ScratchFile scratch, DirectBufferPool bufferPool, boolean verifyChecksum) {
+            this.window = window;
+            this.codeTable = codeTable;
+            this.cache = cache;
+            this.sourceData = sourceData;
+            this.scratch = scratch;
+            this.bufferPool = bufferPool;
+            this.verifyChecksum = verifyChecksum;
+        }
+
+        @Override
+        public DeltaWindow call() throws Exception {
+            try {
+                window.decode(codeTable, cache, sourceData, scratch, bufferPool);
+            } finally {
+                IOUtils.closeQueitly(sourceData);
+            }
+            if (verifyChecksum) {
+                window.verify();
+            }
+            return window;
+        }
+    }
+
+    /**
+     * read patch header, and set up code table for the patch.
+     */
+    void readHeader() throws IOException, PatchException {
+        openedWindows = 0;
+        writtenWindows = 0;
+        writtenLength = 0;
+        writtenChecksum = 1;
+        checkpointLength = 0;
+        secondaryCompressorId = -1;
+        long remaining = patchReader.remaining();
+        patchLength = remaining < 0 ? -1 : patchReader.position() + remaining;
+        if (checkpointListener != null) {
+            patchReader.startChecksum();
+        }
+        codeTable = CodeTable.Default;
+        cache = defaultCache;
+        decompressor = null;
+        byte[] magic = patchReader.readBytes(4);
         if (magic[0] != (byte)0xd6 || magic[1] != (byte)0xc3 || magic[2] != (byte)0xc4) {
             // not vcdiff jvcdiff file.
             throw new PatchException("The jvcdiff file is Not vcdiff file.");
@@ -95,11 +841,15 @@ public class VcdiffDecoder {
             // version num.now is always 0.
             throw new UnsupportedOperationException("Unsupported vcdiff version.");
         }
-        byte headerIndicator = (byte) patchStream.read();
+        int headerIndicator = patchReader.readByte();
         if ((headerIndicator & 1) != 0) {
-            // secondary compress.
-            throw new UnsupportedOperationException(
-                    "Patch file using secondary compressors not supported.");
+            // secondary compressor id.
+            int compressorId = patchReader.readByte();
+            secondaryCompressorId = compressorId;
+            decompressor = SecondaryCompressors.getDecompressor(compressorId);
+            if (decompressor == null) {
+                throw new PatchException("Unsupported secondary compressor: " + compressorId);
+            }
         }
 
         boolean customCodeTable = ((headerIndicator & 2) != 0);
@@ -118,11 +868,46 @@ public class VcdiffDecoder {
 
         // Ignore the application header if we have one.
         if (applicationHeader) {
-            int appHeaderLength = IOUtils.read7bitIntBE(patchStream);
+            int appHeaderLength = patchReader.read7bitIntBE();
             // skip bytes.
-            IOUtils.readBytes(patchStream, appHeaderLength);
+            patchReader.read(appHeaderLength);
+        }
+        headerLength = (int) patchReader.position();
+
+    }
+
+    /**
+     * code table of current patch, valid after header read.
+     */
+    CodeTable getCodeTable() {
+        return codeTable;
+    }
+
+    /**
+     * address cache of current patch, valid after header read.
+     */
+    AddressCache getCache() {
+        return cache;
+    }
+
+    private void openScratch() {
+        if (maxWindowMemory < Integer.MAX_VALUE) {
+            scratch = new ScratchFile(maxWindowMemory, scratchDirectory);
         }
+    }
 
+    private void closeScratch() {
+        if (scratch != null) {
+            scratch.close();
+            scratch = null;
+        }
+    }
+
+    /**
+     * secondary decompressor of current patch, valid after header read.
+     */
+    SecondaryDecompressor getDecompressor() {
+        return decompressor;
     }
 
     /**
@@ -132,10 +917,10 @@ public class VcdiffDecoder {
      * @throws IOException
      */
     private void readCodeTable() throws IOException, PatchException {
-        int compressedTableLen = IOUtils.read7bitIntBE(patchStream) - 2;
-        int nearSize = patchStream.read();
-        int sameSize = patchStream.read();
-        byte[] compressedTableData = IOUtils.readBytes(patchStream,compressedTableLen);
+        int compressedTableLen = patchReader.read7bitIntBE() - 2;
+        int nearSize = patchReader.readByte();
+        int sameSize = patchReader.readByte();
+        byte[] compressedTableData = patchReader.readBytes(compressedTableLen);
 
         byte[] defaultTableData = CodeTable.Default.getBytes();
 
@@ -149,184 +934,126 @@ public class VcdiffDecoder {
         }
 
         codeTable = new CodeTable(decompressedTableData);
-        cache = new AddressCache(nearSize, sameSize);
+        if (nearSize != 4 || sameSize != 3) {
+            cache = new AddressCache(nearSize, sameSize);
+        }
     }
 
-    private boolean decodeWindow() throws IOException, PatchException {
-        
-        int windowIndicator = patchStream.read();
-        // finished.
-        if (windowIndicator == -1) {
+    /**
+     * decode next window and write it to target.
+     * @return false if no more window.
+     */
+    boolean decodeWindow() throws IOException, PatchException {
+        if (!window.read(patchReader, decompressor, scratch)) {
             return false;
         }
+        SeekableStream sourceData = openSource(window);
+        try {
+            ByteBuffer mapped = null;
+            if (targetStream instanceof MappedFileSeekableStream) {
+                mapped = ((MappedFileSeekableStream) targetStream).mapForWrite(window.targetLen);
+            }
+            if (mapped != null) {
+                window.decode(codeTable, cache, sourceData, mapped);
+            } else {
+                window.decode(codeTable, cache, sourceData, scratch, bufferPool);
+            }
+        } finally {
+            IOUtils.closeQueitly(sourceData);
+        }
+        if (verifyChecksum) {
+            window.verify();
+        }
+        writeWindow(window);
+        return true;
+    }
 
-        SeekableStream sourceStream;
-        
-        int tempTargetStreamPos = -1;
+    /**
+     * write decoded window data to target.
+     * @return the window
+     */
+    private DeltaWindow writeWindow(DeltaWindow window) throws IOException {
+        if (window.inTarget) {
+            ((MappedFileSeekableStream) targetStream).commitWrite(window.targetLen);
+        } else {
+            window.writeTo(targetStream);
+        }
+        if (digest != null) {
+            window.updateDigest(digest);
+        }
+        if (checkpointListener != null) {
+            // checksum of window is verified already if it has one.
+            long adler32 = window.hasChecksum && verifyChecksum ? window.checksum & 0xffffffffL : window.adler32();
+            writtenChecksum = Checkpoint.combineAdler32(writtenChecksum, adler32, window.targetLen);
+        }
+        window.release();
+        writtenWindows++;
+        writtenLength += window.targetLen;
+        if (checkpointListener != null && writtenLength - checkpointLength >= checkpointInterval) {
+            checkpointLength = writtenLength;
+            checkpointListener.checkpoint(new Checkpoint(window.patchEnd, writtenLength, writtenWindows,
+                    headerLength, cache.getNearSize(), cache.getSameSize(), secondaryCompressorId,
+                    patchLength, window.patchChecksum, writtenChecksum));
+        }
+        return window;
+    }
 
-        // xdelta3 uses an undocumented extra bit which indicates that there are
-        // an extra 4 bytes at the end of the encoding for the window
-        boolean hasAdler32Checksum = ((windowIndicator & 4) == 4);
+    /**
+     * get source segment of window.
+     * @return null if window has no source.
+     */
+    private SeekableStream openSource(DeltaWindow window) throws IOException, PatchException {
+        int windowNo = openedWindows++;
+        SeekableStream sourceStream;
 
-        // Get rid of the checksum bit for the rest
-        windowIndicator &= 0xfb;
+        long tempTargetStreamPos = -1;
 
-        // Work out what the source data is, and detect invalid window indicators
-        switch (windowIndicator) {
-            // No source data used in this window
-            case 0:
-                sourceStream = null;
-                break;
+        // Work out what the source data is
+        switch (window.indicator) {
             // Source data comes from the original stream
-            case 1:
+            case DeltaWindow.VCD_SOURCE:
                 if (originStream == null) {
                     throw new PatchException("Source stream required.");
                 }
                 sourceStream = originStream;
                 break;
-             // Source data comes from the target stream
-            case 2:
+            // Source data comes from the target stream
+            case DeltaWindow.VCD_TARGET:
                 sourceStream = targetStream;
                 tempTargetStreamPos = targetStream.pos();
                 break;
-            case 3:
+            // No source data used in this window
             default:
-                throw new PatchException("Invalid window indicator.");
+                return null;
+        }
+
+        long sourcePos = window.sourcePos;
+        long sourceStreamLen = sourceStream.length();
+        if (sourcePos > sourceStreamLen) {
+            throw new PatchException("Source segment position out of source stream.");
         }
+        sourceStream.seek(sourcePos);
 
-        // Read the source data, if any
-        SeekableStream sourceData = null;
-        int sourceLen = 0;
         // xdelta 有时生成的diff，sourceLen会大于实际可用的大小.
-        int realSourceLen = 0;
-        if (sourceStream != null) {
-            sourceLen = IOUtils.read7bitIntBE(patchStream);
-            int sourcePos = IOUtils.read7bitIntBE(patchStream);
-            
-            sourceStream.seek(sourcePos);
-            
-            realSourceLen = sourceLen;
-            
-            if (sourceLen + sourcePos > sourceStream.length()) {
-                realSourceLen = sourceStream.length() - sourcePos;
-            }
-            
-            sourceData = IOUtils.getStreamView(sourceStream, realSourceLen, false);
-            
-            // restore the position the source stream if appropriate
-            if (tempTargetStreamPos != -1) {
-                targetStream.seek(tempTargetStreamPos);
-            }
+        int realSourceLen = window.sourceLen;
+        if (window.sourceLen + sourcePos > sourceStreamLen) {
+            realSourceLen = (int) (sourceStreamLen - sourcePos);
         }
-        //sourceStream = null;
-
-        // Length of the delta encoding
-        IOUtils.read7bitIntBE(patchStream);
-
-        //  Length of the target window.the actual size of the target window after decompression
-        int targetLen = IOUtils.read7bitIntBE(patchStream);
-
-        // Delta_Indicator.
-        int deltaIndicator = patchStream.read();
-        if (deltaIndicator != 0) {
-            throw new UnsupportedOperationException("Compressed delta sections not supported.");
-        }
-        
-        byte[] targetData = new byte[targetLen];
-        SeekableStream targetDataStream = new ByteBufferSeekableStream(targetData);
-        
-        // Length of data for ADDs and RUNs
-        int addRunDataLen = IOUtils.read7bitIntBE(patchStream);
-        // Length of instructions and sizes
-        int instructionsLen = IOUtils.read7bitIntBE(patchStream);
-        // Length of addresses for COPYs 
-        int addressesLen = IOUtils.read7bitIntBE(patchStream);
-
-        // If we've been given a checksum, we have to read it and we might as well
-        int checksumInFile = 0;
-        if (hasAdler32Checksum) {
-            byte[] checksumBytes = IOUtils.readBytes(patchStream, 4);
-            checksumInFile = (checksumBytes[0] << 24)
-                    | (checksumBytes[1] << 16) | (checksumBytes[2] << 8)
-                    | checksumBytes[3];
-        }
-
-        // Data section for ADDs and RUNs 
-        byte[] addRunData = IOUtils.readBytes(patchStream, addRunDataLen);
-        int addRunDataIndex = 0;
-        // Instructions and sizes section
-        byte[] instructions = IOUtils.readBytes(patchStream, instructionsLen);
-        // Addresses section for COPYs
-        byte[] addresses = IOUtils.readBytes(patchStream, addressesLen);
-
-        SeekableStream instructionStream = new ByteBufferSeekableStream(instructions, true);
-
-        cache.reset(addresses);
-
-        while (true) {
-            int instructionIndex = instructionStream.read();
-            if (instructionIndex == -1) {
-                break;
-            }
 
-            for (int i = 0; i < 2; i++) {
-                Instruction instruction = codeTable.get(instructionIndex, i);
-                int size = instruction.getSize();
-                if (size == 0 && instruction.getIst() != InstructionType.NO_OP) {
-                    size = IOUtils.read7bitIntBE(instructionStream);
-                }
-                switch (instruction.getIst()) {
-                    case NO_OP:
-                        break;
-                    case ADD:
-                        targetDataStream.write(addRunData, addRunDataIndex, size);
-                        addRunDataIndex += size;
-                        break;
-                    case COPY:
-                        int addr = cache.decodeAddress(
-                                targetDataStream.pos() + sourceLen,
-                                instruction.getMode());
-                        if (sourceData != null && addr < realSourceLen) {
-                            sourceData.seek(addr);
-                            IOUtils.copy(sourceData, targetDataStream, size);
-                        } else {
-                            // Data is in target data
-                            // Get rid of the offset
-                            addr -= sourceLen;
-                            // Can we just ignore overlap issues?
-                            if (addr + size < targetDataStream.pos()) {
-                                targetDataStream.write(targetData, addr, size);
-                            } else {
-                                for (int j = 0; j < size; j++) {
-                                    targetDataStream.write(targetData[addr++]);
-                                }
-                            }
-                        }
-                        break;
-                    case RUN:
-                        byte data = addRunData[addRunDataIndex++];
-                        for (int j = 0; j < size; j++) {
-                            targetDataStream.write(data);
-                        }
-                        break;
-                    default:
-                        throw new PatchException("Invalid instruction type found.");
-                }
+        if (prefetcher != null && window.indicator == DeltaWindow.VCD_SOURCE) {
+            SeekableStream sourceData = prefetcher.take(windowNo, sourcePos, realSourceLen);
+            if (sourceData != null) {
+                return sourceData;
             }
         }
-        IOUtils.closeQueitly(targetDataStream);
-        IOUtils.closeQueitly(sourceData);
-        targetStream.write(targetData, 0, targetLen);
 
-        if (hasAdler32Checksum) {
-            // check sum
-            // skip
-            check(checksumInFile, targetData);
-        }
-        return true;
-    }
+        // share data with source stream, COPY instructions read straight from it.
+        SeekableStream sourceData = IOUtils.getStreamView(sourceStream, realSourceLen, true);
 
-    private void check(int checksumInFile, byte[] targetData) {
-        //TODO: adler32 check.
+        // restore the position the source stream if appropriate
+        if (tempTargetStreamPos != -1) {
+            targetStream.seek(tempTargetStreamPos);
+        }
+        return sourceData;
     }
 }
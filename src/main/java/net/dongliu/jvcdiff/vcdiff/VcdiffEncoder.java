@@ -0,0 +1,442 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.codetable.AddressCache;
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTable;
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTableGenerator;
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.FileSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+import net.dongliu.jvcdiff.vcdiff.secondary.SecondaryCompressor;
+
+import java.io.*;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * vcdiff encode.
+ * Source is indexed by a rolling hash, see {@link SourceIndex}, target is cut into windows,
+ * and matches of each window in source and in the window itself are found greedily and encoded
+ * as COPY instructions with the default code table. The output can be decoded by {@link VcdiffDecoder}.
+ * Without source, target is compressed as LZ77 does, and each window may copy from the target
+ * data before it.
+ *
+ * @author dongliu
+ */
+public class VcdiffEncoder {
+
+    /** default size of target windows. */
+    public static final int DEFAULT_WINDOW_SIZE = 4 * 1024 * 1024;
+
+    /** max size of target windows, bounds the matches of one window. */
+    public static final int MAX_WINDOW_SIZE = 256 * 1024 * 1024;
+
+    /** default max size of source segment one window copies from. */
+    public static final int DEFAULT_MAX_SOURCE_SEGMENT_SIZE = 256 * 1024 * 1024;
+
+    private static final byte[] MAGIC = {(byte) 0xd6, (byte) 0xc3, (byte) 0xc4, 0};
+
+    /** null if no source. */
+    private final SeekableStream sourceStream;
+
+    private final InputStream targetStream;
+
+    private final OutputStream patchStream;
+
+    private SourceIndex sourceIndex;
+
+    private int windowSize = DEFAULT_WINDOW_SIZE;
+
+    private int maxSourceSegmentSize = DEFAULT_MAX_SOURCE_SEGMENT_SIZE;
+
+    private boolean checksum;
+
+    private SecondaryCompressor secondaryCompressor;
+
+    private boolean targetDictionary = true;
+
+    private CodeTable codeTable = CodeTable.Default;
+
+    private int nearSize = 4;
+
+    private int sameSize = 3;
+
+    private CodeTableGenerator profile;
+
+    /**
+     * @param sourceStream the source, null if target is encoded without source.
+     */
+    public VcdiffEncoder(SeekableStream sourceStream, InputStream targetStream, OutputStream patchStream) {
+        this.sourceStream = sourceStream;
+        this.targetStream = targetStream;
+        this.patchStream = patchStream;
+    }
+
+    /**
+     * Convenient static method for caller.Create vcdiff patch file from originFile to targetFile.
+     * @param originFile the old file.
+     * @param targetFile the new file.
+     * @param patchFile the patch file to create.
+     * @throws IOException
+     */
+    public static void diff(RandomAccessFile originFile, File targetFile, File patchFile) throws IOException {
+        SeekableStream sourceStream = new FileSeekableStream(originFile, true);
+        InputStream targetStream = new FileInputStream(targetFile);
+        OutputStream patchStream = new FileOutputStream(patchFile);
+        try {
+            VcdiffEncoder encoder = new VcdiffEncoder(sourceStream, new BufferedInputStream(targetStream),
+                    new BufferedOutputStream(patchStream));
+            encoder.encode();
+        } finally {
+            IOUtils.closeQueitly(sourceStream);
+            IOUtils.closeQueitly(targetStream);
+            IOUtils.closeQueitly(patchStream);
+        }
+    }
+
+    /**
+     * Convenient static method for caller.Create vcdiff patch file from originFile to targetFile,
+     * windows are encoded concurrently on executor.
+     * @param originFile the old file.
+     * @param targetFile the new file.
+     * @param patchFile the patch file to create.
+     * @param executor the executor to encode windows.
+     * @throws IOException
+     * @see #encode(ExecutorService, int)
+     */
+    public static void diff(RandomAccessFile originFile, File targetFile, File patchFile,
+                            ExecutorService executor) throws IOException {
+        SeekableStream sourceStream = new FileSeekableStream(originFile, true);
+        InputStream targetStream = new FileInputStream(targetFile);
+        OutputStream patchStream = new FileOutputStream(patchFile);
+        try {
+            VcdiffEncoder encoder = new VcdiffEncoder(sourceStream, new BufferedInputStream(targetStream),
+                    new BufferedOutputStream(patchStream));
+            encoder.encode(executor, Runtime.getRuntime().availableProcessors() * 2);
+        } finally {
+            IOUtils.closeQueitly(sourceStream);
+            IOUtils.closeQueitly(targetStream);
+            IOUtils.closeQueitly(patchStream);
+        }
+    }
+
+    /**
+     * Convenient static method for caller.Compress target without source.
+     * @throws IOException
+     */
+    public static void compress(InputStream targetStream, OutputStream patchStream) throws IOException {
+        new VcdiffEncoder(null, targetStream, patchStream).encode();
+    }
+
+    /**
+     * Convenient static method for caller.
+     * @throws IOException
+     */
+    public static void encode(SeekableStream sourceStream, InputStream targetStream, OutputStream patchStream)
+            throws IOException {
+        new VcdiffEncoder(sourceStream, targetStream, patchStream).encode();
+    }
+
+    /**
+     * size of target windows, default 4M.
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize <= 0 || windowSize > MAX_WINDOW_SIZE) {
+            throw new IllegalArgumentException("Window size should be in (0, " + MAX_WINDOW_SIZE + "].");
+        }
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * max size of source segment one window copies from, default 256M.
+     * window size plus source segment size should not exceed 2G.
+     */
+    public void setMaxSourceSegmentSize(int maxSourceSegmentSize) {
+        if (maxSourceSegmentSize <= 0) {
+            throw new IllegalArgumentException("Max source segment size should be positive.");
+        }
+        this.maxSourceSegmentSize = maxSourceSegmentSize;
+    }
+
+    /**
+     * write adler32 checksum of each target window, as xdelta3 does. default false.
+     */
+    public void setChecksum(boolean checksum) {
+        this.checksum = checksum;
+    }
+
+    /**
+     * compress sections of windows with secondary compressor, a section is compressed only if
+     * that makes it smaller. default null, not compressed.
+     * the decoder should have a decompressor registered with the compressor id.
+     */
+    public void setSecondaryCompressor(SecondaryCompressor secondaryCompressor) {
+        this.secondaryCompressor = secondaryCompressor;
+    }
+
+    /**
+     * when encoding without source, copy from target data before the window
+     * (at most {@value WindowEncoder#MAX_DICTIONARY_SIZE} bytes), by VCD_TARGET windows. default true.
+     * Decoder should be able to read back that much target data, and decodes such windows in order.
+     */
+    public void setTargetDictionary(boolean targetDictionary) {
+        this.targetDictionary = targetDictionary;
+    }
+
+    /**
+     * encode with a custom code table and address cache sizes, the table is written to patch header.
+     * @see CodeTableGenerator
+     */
+    public void setCodeTable(CodeTable codeTable, int nearSize, int sameSize) {
+        if (nearSize < 0 || sameSize < 0 || nearSize + sameSize + 2 > 256) {
+            throw new IllegalArgumentException("Invalid address cache sizes.");
+        }
+        // every instruction should be encodable with size after opcode.
+        boolean complete = codeTable.findOpcode(CodeTable.TYPE_ADD, 0, 0) >= 0
+                && codeTable.findOpcode(CodeTable.TYPE_RUN, 0, 0) >= 0;
+        for (int mode = 0; mode < nearSize + sameSize + 2; mode++) {
+            complete &= codeTable.findOpcode(CodeTable.TYPE_COPY, 0, mode) >= 0;
+        }
+        if (!complete) {
+            throw new IllegalArgumentException("Code table lacks instructions with size 0.");
+        }
+        this.codeTable = codeTable;
+        this.nearSize = nearSize;
+        this.sameSize = sameSize;
+    }
+
+    /**
+     * record instructions encoded to profile, for generating code table.
+     */
+    public void setProfile(CodeTableGenerator profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * use an index built before, so the same source is indexed once for many targets.
+     * @see SourceIndex#build(SeekableStream)
+     * @see SourceIndex#loadOrBuild(File, SeekableStream)
+     */
+    public void setSourceIndex(SourceIndex sourceIndex) {
+        this.sourceIndex = sourceIndex;
+    }
+
+    /**
+     * do vcdiff encode, until the end of target.
+     * @throws IOException
+     */
+    public void encode() throws IOException {
+        prepare();
+        if (profile != null) {
+            profile.addPatch();
+        }
+        WindowEncoder windowEncoder = newWindowEncoder();
+        writeHeader();
+        int dictionarySize = dictionarySize();
+        byte[] buffer = new byte[dictionarySize + windowSize];
+        int dictionaryLen = 0;
+        long targetPos = 0;
+        int length;
+        while ((length = readWindow(buffer, dictionaryLen)) > 0) {
+            windowEncoder.encode(buffer, dictionaryLen, length, targetPos - dictionaryLen, patchStream);
+            targetPos += length;
+            // the tail of target data read is the dictionary of next window.
+            int keep = Math.min(dictionarySize, dictionaryLen + length);
+            System.arraycopy(buffer, dictionaryLen + length - keep, buffer, 0, keep);
+            dictionaryLen = keep;
+        }
+        patchStream.flush();
+    }
+
+    /**
+     * do vcdiff encode, windows are encoded concurrently.
+     * Target is cut into windows of window size, each window is encoded independently on executor,
+     * searching the shared source index. Encoded windows are written in order by current thread.
+     * @param executor any executor service, e.g. a thread pool.
+     * @param maxPendingWindows max windows encoding or waiting to be written,
+     *                          this bounds the memory used.
+     * @throws IOException
+     */
+    public void encode(ExecutorService executor, int maxPendingWindows) throws IOException {
+        prepare();
+        if (profile != null) {
+            profile.addPatch();
+        }
+        writeHeader();
+
+        LinkedList<Future<WindowTask>> pending = new LinkedList<Future<WindowTask>>();
+        // tasks already written, for reuse of buffers.
+        LinkedList<WindowTask> idle = new LinkedList<WindowTask>();
+        // window encoders not used by a task now.
+        Queue<WindowEncoder> encoders = new ConcurrentLinkedQueue<WindowEncoder>();
+        int dictionarySize = dictionarySize();
+        byte[] dictionary = new byte[dictionarySize];
+        int dictionaryLen = 0;
+        long targetPos = 0;
+        try {
+            while (true) {
+                WindowTask task = idle.isEmpty() ? new WindowTask(encoders, dictionarySize) : idle.removeFirst();
+                System.arraycopy(dictionary, 0, task.buffer, 0, dictionaryLen);
+                task.dictionaryLen = dictionaryLen;
+                task.dictionaryPos = targetPos - dictionaryLen;
+                task.targetLen = readWindow(task.buffer, dictionaryLen);
+                if (task.targetLen == 0) {
+                    break;
+                }
+                targetPos += task.targetLen;
+                dictionaryLen = Math.min(dictionarySize, dictionaryLen + task.targetLen);
+                System.arraycopy(task.buffer, task.dictionaryLen + task.targetLen - dictionaryLen,
+                        dictionary, 0, dictionaryLen);
+                pending.add(executor.submit(task));
+                if (pending.size() >= maxPendingWindows) {
+                    idle.add(writeWindow(await(pending.removeFirst())));
+                }
+            }
+            while (!pending.isEmpty()) {
+                idle.add(writeWindow(await(pending.removeFirst())));
+            }
+        } finally {
+            for (Future<WindowTask> future : pending) {
+                future.cancel(true);
+            }
+        }
+        patchStream.flush();
+    }
+
+    private WindowTask writeWindow(WindowTask task) throws IOException {
+        task.output.writeTo(patchStream);
+        return task;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for window encoding.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * encode one window on executor, into its own output buffer.
+     */
+    private class WindowTask implements Callable<WindowTask> {
+        /** dictionary then target data of the window. */
+        private final byte[] buffer;
+        private int dictionaryLen;
+        private long dictionaryPos;
+        private int targetLen;
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        private final Queue<WindowEncoder> encoders;
+
+        WindowTask(Queue<WindowEncoder> encoders, int dictionarySize) {
+            this.encoders = encoders;
+            this.buffer = new byte[dictionarySize + windowSize];
+        }
+
+        @Override
+        public WindowTask call() throws Exception {
+            WindowEncoder windowEncoder = encoders.poll();
+            if (windowEncoder == null) {
+                windowEncoder = newWindowEncoder();
+            }
+            output.reset();
+            windowEncoder.encode(buffer, dictionaryLen, targetLen, dictionaryPos, output);
+            encoders.add(windowEncoder);
+            return this;
+        }
+    }
+
+    /**
+     * check settings, and index source if not indexed yet.
+     */
+    private void prepare() throws IOException {
+        if ((long) windowSize + maxSourceSegmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Window size plus max source segment size exceed 2G.");
+        }
+        if (sourceStream != null) {
+            if (sourceIndex == null) {
+                sourceIndex = SourceIndex.build(sourceStream);
+            } else if (sourceIndex.getSourceLength() != sourceStream.length()) {
+                throw new IllegalArgumentException("Source index is not built from this source.");
+            }
+        }
+    }
+
+    /**
+     * a window encoder has its own source reader, all of them share the source index.
+     */
+    private WindowEncoder newWindowEncoder() {
+        SourceReader sourceReader = null;
+        if (sourceStream != null) {
+            sourceReader = new SourceReader(sourceStream, sourceIndex.getSourceLength());
+        }
+        return new WindowEncoder(sourceStream == null ? null : sourceIndex, sourceReader,
+                codeTable, new AddressCache(nearSize, sameSize), maxSourceSegmentSize, checksum,
+                secondaryCompressor, profile);
+    }
+
+    private void writeHeader() throws IOException {
+        patchStream.write(MAGIC);
+        boolean customCodeTable = codeTable != CodeTable.Default || nearSize != 4 || sameSize != 3;
+        // Hdr_Indicator: secondary compressor, custom code table, no application header
+        patchStream.write((secondaryCompressor != null ? 1 : 0) | (customCodeTable ? 2 : 0));
+        if (secondaryCompressor != null) {
+            patchStream.write(secondaryCompressor.getId());
+        }
+        if (!customCodeTable) {
+            return;
+        }
+        // custom code table, encoded against the default table.
+        ByteArrayOutputStream tableDelta = new ByteArrayOutputStream();
+        VcdiffEncoder tableEncoder = new VcdiffEncoder(
+                new ByteBufferSeekableStream(CodeTable.Default.getBytes(), true),
+                new ByteArrayInputStream(codeTable.getBytes()), tableDelta);
+        tableEncoder.encode();
+        IOUtils.write7bitIntBE(patchStream, tableDelta.size() + 2);
+        patchStream.write(nearSize);
+        patchStream.write(sameSize);
+        tableDelta.writeTo(patchStream);
+    }
+
+    /**
+     * the dictionary is used only without source.
+     */
+    private int dictionarySize() {
+        if (sourceStream != null || !targetDictionary) {
+            return 0;
+        }
+        return Math.min(windowSize, WindowEncoder.MAX_DICTIONARY_SIZE);
+    }
+
+    /**
+     * fill buffer from offset with target data, at most window size bytes.
+     * @return bytes read, less than window size only at the end of target.
+     */
+    private int readWindow(byte[] buffer, int offset) throws IOException {
+        int length = 0;
+        while (length < windowSize) {
+            int size = targetStream.read(buffer, offset + length, windowSize - length);
+            if (size < 0) {
+                break;
+            }
+            length += size;
+        }
+        return length;
+    }
+}
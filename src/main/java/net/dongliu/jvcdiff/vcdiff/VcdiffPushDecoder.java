@@ -0,0 +1,157 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.PatchReader;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * vcdiff decode driven by caller: patch data is pushed in chunks as it arrives, and each window
+ * is decoded and written to target as soon as all of its data is pushed.
+ * Windows are decoded whole, so data of the window not complete yet is buffered, up to
+ * {@link #setMaxBufferedBytes(int)}. Never blocks on patch data, so one thread (e.g. a selector /
+ * event loop thread) can drive many decoders; but windows are decoded and written to target in
+ * {@link #feed(ByteBuffer)}, so target should not block either, e.g. a file or memory target.
+ * Not thread safe.
+ *
+ * @author dongliu
+ */
+public class VcdiffPushDecoder {
+
+    private final PatchReader patchReader = new PatchReader();
+
+    private final VcdiffDecoder decoder;
+
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 64 * 1024 * 1024;
+
+    private boolean headerRead;
+
+    private int maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
+    public VcdiffPushDecoder(SeekableStream originStream, SeekableStream targetStream) {
+        this.decoder = new VcdiffDecoder(originStream, patchReader, targetStream);
+    }
+
+    /**
+     * max bytes of patch data buffered for the header or window not complete yet.
+     * default {@link #DEFAULT_MAX_BUFFERED_BYTES}, patches with larger windows fail.
+     */
+    public void setMaxBufferedBytes(int maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * push next chunk of patch data, all of data is consumed.
+     * decodes all windows completed by this chunk.
+     * @throws IOException
+     * @throws PatchException if patch is invalid, or the window not complete yet needs more than
+     *                        max buffered bytes.
+     */
+    public void feed(ByteBuffer data) throws IOException, PatchException {
+        patchReader.append(data);
+        if (!headerRead) {
+            if (!Scanner.headerAvailable(patchReader.buffered())) {
+                checkBuffered();
+                return;
+            }
+            decoder.readHeader();
+            headerRead = true;
+        }
+        while (Scanner.windowAvailable(patchReader.buffered())) {
+            decoder.decodeWindow();
+        }
+        checkBuffered();
+    }
+
+    private void checkBuffered() throws PatchException {
+        if (patchReader.available() > maxBufferedBytes) {
+            throw new PatchException("Patch data buffered exceeds " + maxBufferedBytes + " bytes.");
+        }
+    }
+
+    /**
+     * all patch data pushed.
+     * @throws PatchException if patch data is incomplete.
+     */
+    public void finish() throws PatchException {
+        if (!headerRead || patchReader.available() > 0) {
+            throw new PatchException("Patch data is incomplete.");
+        }
+    }
+
+    /**
+     * checks whether a complete header / window is buffered, without decoding it.
+     */
+    private static class Scanner {
+        private final ByteBuffer buffer;
+        private long pos;
+        private boolean complete = true;
+
+        private Scanner(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.pos = buffer.position();
+        }
+
+        static boolean headerAvailable(ByteBuffer buffer) {
+            Scanner scanner = new Scanner(buffer);
+            // magic and version
+            scanner.skip(4);
+            int headerIndicator = scanner.readByte();
+            if ((headerIndicator & 1) != 0) {
+                // secondary compressor id
+                scanner.skip(1);
+            }
+            if ((headerIndicator & 2) != 0) {
+                // custom code table
+                scanner.skip(scanner.read7bitLong());
+            }
+            if ((headerIndicator & 4) != 0) {
+                // application header
+                scanner.skip(scanner.read7bitLong());
+            }
+            return scanner.complete;
+        }
+
+        static boolean windowAvailable(ByteBuffer buffer) {
+            Scanner scanner = new Scanner(buffer);
+            int windowIndicator = scanner.readByte();
+            if ((windowIndicator & (DeltaWindow.VCD_SOURCE | DeltaWindow.VCD_TARGET)) != 0) {
+                // source segment length and position
+                scanner.read7bitLong();
+                scanner.read7bitLong();
+            }
+            scanner.skip(scanner.read7bitLong());
+            return scanner.complete;
+        }
+
+        private int readByte() {
+            if (!complete || pos >= buffer.limit()) {
+                complete = false;
+                return 0;
+            }
+            return buffer.get((int) pos++) & 0xff;
+        }
+
+        private long read7bitLong() {
+            long ret = 0;
+            // malformed data is reported when decoding, stop at ten bytes here.
+            for (int i = 0; i < 10 && complete; i++) {
+                int b = readByte();
+                ret = (ret << 7) | (b & 0x7f);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            return ret;
+        }
+
+        private void skip(long length) {
+            pos += length;
+            if (pos > buffer.limit()) {
+                complete = false;
+            }
+        }
+    }
+}
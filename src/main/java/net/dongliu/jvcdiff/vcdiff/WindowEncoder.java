@@ -0,0 +1,559 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.codetable.AddressCache;
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTable;
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTableGenerator;
+import net.dongliu.jvcdiff.vcdiff.codetable.InstructionEncoder;
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import net.dongliu.jvcdiff.vcdiff.secondary.SecondaryCompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.Adler32;
+
+/**
+ * Encodes one target window: finds matches of target data greedily, chooses the source segment,
+ * and writes the window with ADD / RUN / COPY instructions.
+ * Matches are searched in source by the source index, and in target data before the current
+ * position by hash chains, as LZ77 does. Target data before the window may be given as a
+ * dictionary, which is referenced as a VCD_TARGET source segment.
+ * Window encoders are reused for following windows, not thread safe.
+ *
+ * @author dongliu
+ */
+class WindowEncoder {
+
+    /** shortest match in source encoded as COPY. */
+    static final int MIN_MATCH = SourceIndex.BLOCK_SIZE;
+
+    /** shortest match in target encoded as COPY. */
+    static final int MIN_TARGET_MATCH = 6;
+
+    /** shortest repeated bytes encoded as RUN. */
+    static final int MIN_RUN = 8;
+
+    /** max target data before the window used as dictionary. */
+    static final int MAX_DICTIONARY_SIZE = 1 << 20;
+
+    /** bytes hashed for hash chains. */
+    private static final int CHAIN_HASH_SIZE = 4;
+
+    private static final int CHAIN_HASH_BITS = 16;
+
+    /** max distance of target matches, the size of chain ring. */
+    private static final int MAX_CHAIN_WINDOW = 1 << 21;
+
+    /** max candidates tried in a hash chain. */
+    private static final int MAX_CHAIN_LENGTH = 16;
+
+    /** null if there is no source. */
+    private final SourceIndex sourceIndex;
+
+    private final SourceReader sourceReader;
+
+    private final AddressCache cache;
+
+    private final InstructionEncoder instructionEncoder;
+
+    private final int maxSourceSegmentSize;
+
+    private final boolean checksum;
+
+    /** compresses sections if not null. */
+    private final SecondaryCompressor secondaryCompressor;
+
+    /** instructions are recorded to profile if not null, a window at a time. */
+    private final CodeTableGenerator profile;
+    private final CodeTableGenerator windowProfile;
+
+    /** the three sections, and the delta header before them. */
+    private final ByteArrayOutputStream addRunData = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream addresses = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream deltaHeader = new ByteArrayOutputStream();
+
+    private final Adler32 adler32 = new Adler32();
+
+    /** hash chains: the last position with a hash, and the previous position with the same hash. */
+    private final int[] chainHead = new int[1 << CHAIN_HASH_BITS];
+    private int[] chainPrev = new int[0];
+    private int chainMask;
+
+    /**
+     * matches found in target order, length is set to 0 if the match is dropped.
+     * match address is source position, or position in buffer for matches in target.
+     */
+    private int matchCount;
+    private int[] matchTargetPos = new int[64];
+    private long[] matchAddress = new long[64];
+    private int[] matchLength = new int[64];
+    private boolean[] matchInTarget = new boolean[64];
+
+    /** the source segment of current window, in source or in dictionary. */
+    private int segmentType;
+    private long segmentPos;
+    private int segmentLen;
+
+    WindowEncoder(SourceIndex sourceIndex, SourceReader sourceReader, CodeTable codeTable,
+                  AddressCache cache, int maxSourceSegmentSize, boolean checksum,
+                  SecondaryCompressor secondaryCompressor, CodeTableGenerator profile) {
+        this.sourceIndex = sourceIndex;
+        this.sourceReader = sourceReader;
+        this.cache = cache;
+        this.instructionEncoder = new InstructionEncoder(codeTable);
+        this.maxSourceSegmentSize = maxSourceSegmentSize;
+        this.checksum = checksum;
+        this.secondaryCompressor = secondaryCompressor;
+        this.profile = profile;
+        this.windowProfile = profile == null ? null : new CodeTableGenerator();
+    }
+
+    /**
+     * encode buffer[dictionaryLen, dictionaryLen + targetLen) as one window and write it to out.
+     * buffer[0, dictionaryLen) is target data just before the window, only used without source index.
+     * @param dictionaryPos position of the dictionary in target.
+     * @throws IOException
+     */
+    void encode(byte[] buffer, int dictionaryLen, int targetLen, long dictionaryPos, OutputStream out)
+            throws IOException {
+        if (sourceIndex != null && dictionaryLen != 0) {
+            throw new IllegalArgumentException("Dictionary cannot be used with source.");
+        }
+        int end = dictionaryLen + targetLen;
+        matchCount = 0;
+        findMatches(buffer, dictionaryLen, end);
+        if (sourceIndex != null) {
+            chooseSegment();
+        } else {
+            chooseDictionarySegment(dictionaryLen, dictionaryPos);
+        }
+
+        addRunData.reset();
+        instructions.reset();
+        addresses.reset();
+        cache.reset();
+        if (profile != null) {
+            windowProfile.clear();
+            windowProfile.addWindow();
+        }
+        int pos = dictionaryLen;
+        for (int i = 0; i < matchCount; i++) {
+            int length = matchLength[i];
+            if (length == 0) {
+                continue;
+            }
+            int targetPos = matchTargetPos[i];
+            encodeLiteral(buffer, pos, targetPos);
+            int address;
+            if (!matchInTarget[i]) {
+                address = (int) (matchAddress[i] - segmentPos);
+            } else if (matchAddress[i] < dictionaryLen) {
+                address = (int) (dictionaryPos + matchAddress[i] - segmentPos);
+            } else {
+                address = segmentLen + (int) matchAddress[i] - dictionaryLen;
+            }
+            int here = segmentLen + targetPos - dictionaryLen;
+            int mode = cache.encodeAddress(address, here, addresses);
+            instructionEncoder.encode(CodeTable.TYPE_COPY, length, mode, instructions);
+            if (profile != null) {
+                windowProfile.add(CodeTable.TYPE_COPY, length, address, here);
+            }
+            pos = targetPos + length;
+        }
+        encodeLiteral(buffer, pos, end);
+        instructionEncoder.flush(instructions);
+        if (profile != null) {
+            profile.addAll(windowProfile);
+        }
+
+        writeWindow(buffer, dictionaryLen, targetLen, out);
+    }
+
+    /**
+     * take the longer one of matches in source and in target at each position greedily.
+     * a match is extended backward over literal data before it, and forward as far as possible.
+     */
+    private void findMatches(byte[] buffer, int start, int end) throws IOException {
+        int blockSize = SourceIndex.BLOCK_SIZE;
+        resetChains(end);
+        for (int pos = 0; pos < start; pos++) {
+            insertChain(buffer, pos, end);
+        }
+        // data before literalStart is covered by matches.
+        int literalStart = start;
+        int pos = start;
+        int hash = 0;
+        if (sourceIndex != null && pos + blockSize <= end) {
+            hash = SourceIndex.hash(buffer, pos);
+        }
+        while (pos + CHAIN_HASH_SIZE <= end) {
+            int bestLength = 0;
+            int bestBackward = 0;
+            long bestAddress = 0;
+            boolean inTarget = false;
+
+            if (sourceIndex != null && pos + blockSize <= end) {
+                long sourcePos = sourceIndex.lookup(hash);
+                if (sourcePos >= 0) {
+                    int forward = sourceReader.matchForward(sourcePos, buffer, pos, end - pos);
+                    if (forward >= blockSize) {
+                        int backward = sourceReader.matchBackward(sourcePos, buffer, pos, pos - literalStart);
+                        if (forward + backward >= MIN_MATCH) {
+                            bestLength = forward + backward;
+                            bestBackward = backward;
+                            bestAddress = sourcePos - backward;
+                        }
+                    }
+                }
+            }
+
+            // candidates in hash chain are before pos, and closer first.
+            int candidate = chainHead[chainHash(buffer, pos)];
+            for (int i = 0; i < MAX_CHAIN_LENGTH && candidate >= 0 && pos - candidate <= chainMask; i++) {
+                // a match should be all in dictionary or all in the window.
+                int limit = candidate < start ? Math.min(start - candidate, end - pos) : end - pos;
+                int forward = matchForward(buffer, candidate, pos, limit);
+                if (forward >= CHAIN_HASH_SIZE) {
+                    limit = candidate < start ? pos - literalStart
+                            : Math.min(pos - literalStart, candidate - start);
+                    int backward = matchBackward(buffer, candidate, pos, limit);
+                    if (forward + backward >= MIN_TARGET_MATCH && forward + backward > bestLength) {
+                        bestLength = forward + backward;
+                        bestBackward = backward;
+                        bestAddress = candidate - backward;
+                        inTarget = true;
+                    }
+                }
+                candidate = chainPrev[candidate & chainMask];
+            }
+
+            if (bestLength > 0) {
+                addMatch(pos - bestBackward, bestAddress, bestLength, inTarget);
+                literalStart = pos - bestBackward + bestLength;
+                for (; pos < literalStart; pos++) {
+                    insertChain(buffer, pos, end);
+                }
+                if (sourceIndex != null && pos + blockSize <= end) {
+                    hash = SourceIndex.hash(buffer, pos);
+                }
+                continue;
+            }
+            insertChain(buffer, pos, end);
+            if (sourceIndex != null && pos + blockSize < end) {
+                hash = SourceIndex.roll(hash, buffer[pos], buffer[pos + blockSize]);
+            }
+            pos++;
+        }
+    }
+
+    private void resetChains(int length) {
+        int size = 1;
+        while (size < length && size < MAX_CHAIN_WINDOW) {
+            size <<= 1;
+        }
+        if (chainPrev.length < size) {
+            chainPrev = new int[size];
+        }
+        chainMask = chainPrev.length - 1;
+        Arrays.fill(chainHead, -1);
+    }
+
+    private void insertChain(byte[] buffer, int pos, int end) {
+        if (pos + CHAIN_HASH_SIZE <= end) {
+            int hash = chainHash(buffer, pos);
+            chainPrev[pos & chainMask] = chainHead[hash];
+            chainHead[hash] = pos;
+        }
+    }
+
+    private static int chainHash(byte[] buffer, int pos) {
+        int value = (buffer[pos] & 0xff) << 24 | (buffer[pos + 1] & 0xff) << 16
+                | (buffer[pos + 2] & 0xff) << 8 | (buffer[pos + 3] & 0xff);
+        return (value * 0x9E3779B1) >>> (32 - CHAIN_HASH_BITS);
+    }
+
+    /**
+     * count bytes equal from from and pos forward. data may overlap, as COPY does.
+     */
+    private static int matchForward(byte[] buffer, int from, int pos, int maxLength) {
+        int length = 0;
+        while (length < maxLength && buffer[from + length] == buffer[pos + length]) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int matchBackward(byte[] buffer, int from, int pos, int maxLength) {
+        maxLength = Math.min(maxLength, from);
+        int length = 0;
+        while (length < maxLength && buffer[from - length - 1] == buffer[pos - length - 1]) {
+            length++;
+        }
+        return length;
+    }
+
+    private void addMatch(int targetPos, long address, int length, boolean inTarget) {
+        if (matchCount == matchLength.length) {
+            matchTargetPos = Arrays.copyOf(matchTargetPos, matchCount * 2);
+            matchAddress = Arrays.copyOf(matchAddress, matchCount * 2);
+            matchLength = Arrays.copyOf(matchLength, matchCount * 2);
+            matchInTarget = Arrays.copyOf(matchInTarget, matchCount * 2);
+        }
+        matchTargetPos[matchCount] = targetPos;
+        matchAddress[matchCount] = address;
+        matchLength[matchCount] = length;
+        matchInTarget[matchCount] = inTarget;
+        matchCount++;
+    }
+
+    /**
+     * the source segment covers all matches in source if it can, otherwise the range of
+     * maxSourceSegmentSize covering most matched bytes is chosen, and matches out of it are dropped.
+     */
+    private void chooseSegment() {
+        segmentType = DeltaWindow.VCD_SOURCE;
+        segmentPos = 0;
+        segmentLen = 0;
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (int i = 0; i < matchCount; i++) {
+            if (!matchInTarget[i]) {
+                start = Math.min(start, matchAddress[i]);
+                end = Math.max(end, matchAddress[i] + matchLength[i]);
+            }
+        }
+        if (end == 0) {
+            return;
+        }
+        if (end - start > maxSourceSegmentSize) {
+            start = bestSegmentStart();
+            end = start;
+            for (int i = 0; i < matchCount; i++) {
+                if (matchInTarget[i]) {
+                    continue;
+                }
+                long matchEnd = matchAddress[i] + matchLength[i];
+                if (matchAddress[i] < start || matchEnd > start + maxSourceSegmentSize) {
+                    matchLength[i] = 0;
+                } else {
+                    end = Math.max(end, matchEnd);
+                }
+            }
+        }
+        segmentPos = start;
+        segmentLen = (int) (end - start);
+    }
+
+    /**
+     * the source segment covers matches in dictionary, in target data.
+     */
+    private void chooseDictionarySegment(int dictionaryLen, long dictionaryPos) {
+        segmentType = DeltaWindow.VCD_TARGET;
+        segmentPos = 0;
+        segmentLen = 0;
+        long start = Long.MAX_VALUE;
+        long end = 0;
+        for (int i = 0; i < matchCount; i++) {
+            if (matchInTarget[i] && matchAddress[i] < dictionaryLen) {
+                start = Math.min(start, matchAddress[i]);
+                end = Math.max(end, matchAddress[i] + matchLength[i]);
+            }
+        }
+        if (end == 0) {
+            return;
+        }
+        segmentPos = dictionaryPos + start;
+        segmentLen = (int) (end - start);
+    }
+
+    /**
+     * sweep segment start over match starts in source order, keeping the sum of lengths of
+     * matches inside [start, start + maxSourceSegmentSize].
+     * @return the segment start with max sum.
+     */
+    private long bestSegmentStart() {
+        int count = 0;
+        int[] indexes = new int[matchCount];
+        long[] starts = new long[matchCount];
+        long[] ends = new long[matchCount];
+        for (int i = 0; i < matchCount; i++) {
+            if (!matchInTarget[i]) {
+                indexes[count] = i;
+                starts[count] = matchAddress[i];
+                ends[count] = matchAddress[i] + matchLength[i];
+                count++;
+            }
+        }
+        // match indexes by source start and by source end.
+        int[] byStart = sortIndexes(indexes, starts, count);
+        int[] byEnd = sortIndexes(indexes, ends, count);
+        // 0: not visited, 1: inside, 2: start passed.
+        byte[] state = new byte[matchCount];
+        long sum = 0;
+        long bestSum = -1;
+        long bestStart = 0;
+        int endIndex = 0;
+        for (int startIndex = 0; startIndex < count; startIndex++) {
+            int i = byStart[startIndex];
+            long start = matchAddress[i];
+            while (endIndex < count) {
+                int j = byEnd[endIndex];
+                if (matchAddress[j] + matchLength[j] > start + maxSourceSegmentSize) {
+                    break;
+                }
+                endIndex++;
+                if (state[j] == 0) {
+                    state[j] = 1;
+                    sum += matchLength[j];
+                }
+            }
+            if (sum > bestSum) {
+                bestSum = sum;
+                bestStart = start;
+            }
+            if (state[i] == 1) {
+                sum -= matchLength[i];
+            }
+            state[i] = 2;
+        }
+        return bestStart;
+    }
+
+    /**
+     * indexes[0, count) sorted by keys, keys are non negative.
+     * keys are packed with indexes into longs for a primitive sort if they fit in the bits left,
+     * else indexes are sorted by comparator.
+     */
+    private static int[] sortIndexes(int[] indexes, final long[] keys, int count) {
+        int[] sorted = new int[count];
+        int indexBits = 32 - Integer.numberOfLeadingZeros(Math.max(count - 1, 1));
+        long maxKey = 0;
+        for (int k = 0; k < count; k++) {
+            maxKey = Math.max(maxKey, keys[k]);
+        }
+        if (maxKey < 1L << (63 - indexBits)) {
+            long[] packed = new long[count];
+            for (int k = 0; k < count; k++) {
+                packed[k] = (keys[k] << indexBits) | k;
+            }
+            Arrays.sort(packed);
+            long mask = (1L << indexBits) - 1;
+            for (int k = 0; k < count; k++) {
+                sorted[k] = indexes[(int) (packed[k] & mask)];
+            }
+            return sorted;
+        }
+        Integer[] order = new Integer[count];
+        for (int k = 0; k < count; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return keys[o1] < keys[o2] ? -1 : (keys[o1] == keys[o2] ? 0 : 1);
+            }
+        });
+        for (int k = 0; k < count; k++) {
+            sorted[k] = indexes[order[k]];
+        }
+        return sorted;
+    }
+
+    /**
+     * encode target[from, to) as ADD, and RUN for repeated bytes.
+     */
+    private void encodeLiteral(byte[] target, int from, int to) throws IOException {
+        int addStart = from;
+        int pos = from;
+        while (pos < to) {
+            int runEnd = pos + 1;
+            while (runEnd < to && target[runEnd] == target[pos]) {
+                runEnd++;
+            }
+            if (runEnd - pos >= MIN_RUN) {
+                encodeAdd(target, addStart, pos);
+                addRunData.write(target[pos]);
+                instructionEncoder.encode(CodeTable.TYPE_RUN, runEnd - pos, 0, instructions);
+                if (profile != null) {
+                    windowProfile.add(CodeTable.TYPE_RUN, runEnd - pos, 0, 0);
+                }
+                addStart = runEnd;
+            }
+            pos = runEnd;
+        }
+        encodeAdd(target, addStart, to);
+    }
+
+    private void encodeAdd(byte[] target, int from, int to) throws IOException {
+        if (to > from) {
+            addRunData.write(target, from, to - from);
+            instructionEncoder.encode(CodeTable.TYPE_ADD, to - from, 0, instructions);
+            if (profile != null) {
+                windowProfile.add(CodeTable.TYPE_ADD, to - from, 0, 0);
+            }
+        }
+    }
+
+    private void writeWindow(byte[] buffer, int offset, int targetLen, OutputStream out) throws IOException {
+        int deltaIndicator = 0;
+        if (secondaryCompressor != null) {
+            deltaIndicator |= compress(addRunData, DeltaWindow.VCD_DATACOMP);
+            deltaIndicator |= compress(instructions, DeltaWindow.VCD_INSTCOMP);
+            deltaIndicator |= compress(addresses, DeltaWindow.VCD_ADDRCOMP);
+        }
+        deltaHeader.reset();
+        // Length of the target window
+        IOUtils.write7bitIntBE(deltaHeader, targetLen);
+        // Delta_Indicator, which sections are compressed
+        deltaHeader.write(deltaIndicator);
+        IOUtils.write7bitIntBE(deltaHeader, addRunData.size());
+        IOUtils.write7bitIntBE(deltaHeader, instructions.size());
+        IOUtils.write7bitIntBE(deltaHeader, addresses.size());
+        int windowIndicator = segmentLen > 0 ? segmentType : 0;
+        if (checksum) {
+            windowIndicator |= DeltaWindow.VCD_ADLER32;
+            adler32.reset();
+            adler32.update(buffer, offset, targetLen);
+            int value = (int) adler32.getValue();
+            deltaHeader.write(value >>> 24);
+            deltaHeader.write(value >>> 16);
+            deltaHeader.write(value >>> 8);
+            deltaHeader.write(value);
+        }
+
+        out.write(windowIndicator);
+        if (segmentLen > 0) {
+            IOUtils.write7bitIntBE(out, segmentLen);
+            IOUtils.write7bitIntBE(out, segmentPos);
+        }
+        IOUtils.write7bitIntBE(out, deltaHeader.size() + addRunData.size()
+                + instructions.size() + addresses.size());
+        deltaHeader.writeTo(out);
+        addRunData.writeTo(out);
+        instructions.writeTo(out);
+        addresses.writeTo(out);
+    }
+
+    /**
+     * replace section with its length and compressed data, if that is smaller.
+     * @return compressBit if compressed, or 0.
+     */
+    private int compress(ByteArrayOutputStream section, int compressBit) throws IOException {
+        int length = section.size();
+        if (length == 0) {
+            return 0;
+        }
+        byte[] data = section.toByteArray();
+        byte[] compressed = secondaryCompressor.compress(data, 0, length);
+        if (IOUtils.sizeOf7bitInt(length) + compressed.length >= length) {
+            return 0;
+        }
+        section.reset();
+        IOUtils.write7bitIntBE(section, length);
+        section.write(compressed);
+        return compressBit;
+    }
+}
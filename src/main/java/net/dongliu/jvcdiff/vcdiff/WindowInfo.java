@@ -0,0 +1,136 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+/**
+ * Structure of one window of a patch, read by {@link PatchInfo} without decoding the window.
+ *
+ * @author dongliu
+ */
+public class WindowInfo {
+
+    /** window position in patch, and bytes of the window including its header. */
+    final long patchOffset;
+    final long patchLength;
+
+    /** window indicator without the checksum bit: 0, VCD_SOURCE or VCD_TARGET. */
+    final int indicator;
+    final boolean hasChecksum;
+    final int checksum;
+
+    final long sourcePos;
+    final int sourceLength;
+
+    /** where the window data starts in target. */
+    final long targetOffset;
+    final int targetLength;
+
+    final int deltaIndicator;
+    final int addRunDataLength;
+    final int instructionsLength;
+    final int addressesLength;
+
+    WindowInfo(long patchOffset, long patchLength, int indicator, boolean hasChecksum, int checksum,
+               long sourcePos, int sourceLength, long targetOffset, int targetLength, int deltaIndicator,
+               int addRunDataLength, int instructionsLength, int addressesLength) {
+        this.patchOffset = patchOffset;
+        this.patchLength = patchLength;
+        this.indicator = indicator;
+        this.hasChecksum = hasChecksum;
+        this.checksum = checksum;
+        this.sourcePos = sourcePos;
+        this.sourceLength = sourceLength;
+        this.targetOffset = targetOffset;
+        this.targetLength = targetLength;
+        this.deltaIndicator = deltaIndicator;
+        this.addRunDataLength = addRunDataLength;
+        this.instructionsLength = instructionsLength;
+        this.addressesLength = addressesLength;
+    }
+
+    public long getPatchOffset() {
+        return patchOffset;
+    }
+
+    public long getPatchLength() {
+        return patchLength;
+    }
+
+    /**
+     * window indicator, without the checksum bit.
+     */
+    public int getIndicator() {
+        return indicator;
+    }
+
+    /**
+     * source segment is in the origin.
+     */
+    public boolean isSourceFromOrigin() {
+        return indicator == DeltaWindow.VCD_SOURCE;
+    }
+
+    /**
+     * source segment is in the target data before this window.
+     */
+    public boolean isSourceFromTarget() {
+        return indicator == DeltaWindow.VCD_TARGET;
+    }
+
+    /**
+     * has xdelta adler32 checksum of target data.
+     */
+    public boolean hasChecksum() {
+        return hasChecksum;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * source segment position, 0 if the window has no source.
+     */
+    public long getSourcePos() {
+        return sourcePos;
+    }
+
+    /**
+     * source segment length, 0 if the window has no source.
+     */
+    public int getSourceLength() {
+        return sourceLength;
+    }
+
+    public long getTargetOffset() {
+        return targetOffset;
+    }
+
+    public int getTargetLength() {
+        return targetLength;
+    }
+
+    /**
+     * which sections are compressed, 0 if none.
+     */
+    public int getDeltaIndicator() {
+        return deltaIndicator;
+    }
+
+    public int getAddRunDataLength() {
+        return addRunDataLength;
+    }
+
+    public int getInstructionsLength() {
+        return instructionsLength;
+    }
+
+    public int getAddressesLength() {
+        return addressesLength;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowInfo{patchOffset=" + patchOffset + ", patchLength=" + patchLength
+                + ", indicator=" + indicator + ", sourcePos=" + sourcePos + ", sourceLength=" + sourceLength
+                + ", targetOffset=" + targetOffset + ", targetLength=" + targetLength + "}";
+    }
+}
@@ -1,10 +1,11 @@
 package net.dongliu.jvcdiff.vcdiff.codetable;
 
-import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
 import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
-import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -33,7 +34,7 @@ public class AddressCache {
      */
     private int[] same;
 
-    private SeekableStream addressStream;
+    private ByteBuffer addresses;
 
     public AddressCache(int nearSize, int sameSize) {
         this.nearSize = nearSize;
@@ -42,12 +43,27 @@ public class AddressCache {
         same = new int[sameSize * 256];
     }
 
-    public void reset(byte[] addresses) {
+    public int getNearSize() {
+        return nearSize;
+    }
+
+    public int getSameSize() {
+        return sameSize;
+    }
+
+    public void reset(ByteBuffer addresses) {
+        reset();
+        this.addresses = addresses;
+    }
+
+    /**
+     * reset caches, for encoding.
+     */
+    public void reset() {
         nextNearSlot = 0;
         Arrays.fill(near, 0);
         Arrays.fill(same, 0);
-
-        addressStream = new ByteBufferSeekableStream(addresses, true);
+        this.addresses = null;
     }
 
     /**
@@ -56,37 +72,94 @@ public class AddressCache {
      * @param mode 
      * @return
      * @throws IOException
+     * @throws PatchException if mode is invalid, or the address is not before here
      */
-    public int decodeAddress(int here, byte mode) throws IOException {
+    public int decodeAddress(int here, int mode) throws IOException, PatchException {
         int address;
 
-        if (mode == 0) {
+        if (mode < 0) {
+            throw new PatchException("Invalid address mode:" + mode);
+        } else if (mode == 0) {
             // The address was encoded by itself as an integer
-            address = IOUtils.read7bitIntBE(addressStream);
+            address = IOUtils.read7bitIntBE(addresses);
         } else if (mode == 1) {
             // The address was encoded as the integer value "here - addr"
-            address = here - IOUtils.read7bitIntBE(addressStream);
+            address = here - IOUtils.read7bitIntBE(addresses);
         } else if (mode <= nearSize + 1) {
             // Near modes: The "near modes" are in the range [2,nearSize+1]
             // The address was encoded  as the integer value "addr - near[m-2]"
-            address = near[mode - 2] + IOUtils.read7bitIntBE(addressStream);
-            if (address == 24178999){
-                System.out.println(near[mode - 2] );
-            }
+            address = near[mode - 2] + IOUtils.read7bitIntBE(addresses);
         } else if (mode <= nearSize + sameSize + 1) {
             // Same modes: are in the range [nearSize+2,nearSize+sameSize+1].
             // The address was encoded as a single byte b such that "addr == same[(mode - (s_near+2))*256 + b]".
             int m = mode - (nearSize + 2);
-            address = same[(m * 256) + IOUtils.readByte(addressStream)];
+            if (!addresses.hasRemaining()) {
+                throw new IndexOutOfBoundsException("Not enough data in addresses section.");
+            }
+            address = same[(m * 256) + (addresses.get() & 0xff)];
         } else {
-            // should never rearch here.
-            throw new RuntimeException("Should never rearch here");
+            throw new PatchException("Invalid address mode:" + mode);
         }
 
+        if (address < 0 || address >= here) {
+            throw new PatchException("Invalid copy address:" + address);
+        }
         update(address);
         return address;
     }
 
+    /**
+     * encode the address of a COPY instruction, choose the mode takes fewest bytes.
+     * @param address the address to encode
+     * @param here the current location in the target data
+     * @param addresses the addresses section to write to
+     * @return the mode
+     * @throws IOException
+     */
+    public int encodeAddress(int address, int here, OutputStream addresses) throws IOException {
+        // The address encoded by itself
+        int bestMode = 0;
+        int bestValue = address;
+        int bestSize = IOUtils.sizeOf7bitInt(address);
+
+        // The address encoded as "here - addr"
+        int value = here - address;
+        int size = IOUtils.sizeOf7bitInt(value);
+        if (size < bestSize) {
+            bestMode = 1;
+            bestValue = value;
+            bestSize = size;
+        }
+
+        // Near modes: "addr - near[m-2]"
+        for (int i = 0; i < nearSize; i++) {
+            value = address - near[i];
+            if (value >= 0) {
+                size = IOUtils.sizeOf7bitInt(value);
+                if (size < bestSize) {
+                    bestMode = i + 2;
+                    bestValue = value;
+                    bestSize = size;
+                }
+            }
+        }
+
+        // Same modes: a single byte b such that "addr == same[(mode - (s_near+2))*256 + b]"
+        if (sameSize > 0 && bestSize > 1) {
+            int slot = address % (sameSize * 256);
+            if (same[slot] == address) {
+                bestMode = nearSize + 2 + slot / 256;
+                addresses.write(slot % 256);
+                update(address);
+                return bestMode;
+            }
+        }
+
+        IOUtils.write7bitIntBE(addresses, bestValue);
+        update(address);
+        return bestMode;
+    }
+
     /**
      * update caches each time a COPY instruction is processed by the encoder or decoder.
      * @param address
@@ -2,6 +2,9 @@ package net.dongliu.jvcdiff.vcdiff.codetable;
 
 import net.dongliu.jvcdiff.vcdiff.codetable.Instruction.InstructionType;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * vcdiff instruction table.
  *
@@ -10,21 +13,68 @@ import net.dongliu.jvcdiff.vcdiff.codetable.Instruction.InstructionType;
  */
 public class CodeTable {
 
+    /** instruction types, the same as {@link InstructionType#getOp()}. */
+    public static final int TYPE_NO_OP = 0;
+    public static final int TYPE_ADD = 1;
+    public static final int TYPE_RUN = 2;
+    public static final int TYPE_COPY = 3;
+
     /** Default code table specified in RFC 3284. */
     public static final CodeTable Default = BuildDefaultCodeTable();
 
     /** code table entries. */
     Instruction[][] entries = new Instruction[256][2];
 
+    /**
+     * the same entries flattened to primitive arrays, for decode loop.
+     * the half instruction i of opcode index is at (index << 1) | i.
+     */
+    private final byte[] types = new byte[512];
+    private final int[] sizes = new int[512];
+    private final byte[] modes = new byte[512];
+
+    /** opcodes by instructions, for encoding. the first opcode is kept if several match. */
+    private final Map<Integer, Integer> singleOpcodes = new HashMap<Integer, Integer>();
+    private final Map<Long, Integer> doubleOpcodes = new HashMap<Long, Integer>();
+
     public CodeTable(byte[] bytes) {
         for (int i = 0; i < 256; i++) {
             entries[i][0] = new Instruction(bytes[i], bytes[i + 512], bytes[i + 1024]);
             entries[i][1] = new Instruction(bytes[i + 256], bytes[i + 768], bytes[i + 1280]);
         }
+        flatten();
     }
 
     private CodeTable(Instruction[][] entries) {
         this.entries = entries;
+        flatten();
+    }
+
+    private void flatten() {
+        for (int i = 0; i < 256; i++) {
+            for (int j = 0; j < 2; j++) {
+                Instruction instruction = entries[i][j];
+                types[(i << 1) | j] = (byte) instruction.getIst().getOp();
+                sizes[(i << 1) | j] = instruction.getSize() & 0xff;
+                modes[(i << 1) | j] = instruction.getMode();
+            }
+            int first = key(types[i << 1], sizes[i << 1], modes[i << 1]);
+            int second = key(types[(i << 1) | 1], sizes[(i << 1) | 1], modes[(i << 1) | 1]);
+            if (types[(i << 1) | 1] == TYPE_NO_OP) {
+                if (types[i << 1] != TYPE_NO_OP && !singleOpcodes.containsKey(first)) {
+                    singleOpcodes.put(first, i);
+                }
+            } else if (types[i << 1] != TYPE_NO_OP) {
+                long key = ((long) first << 32) | second;
+                if (!doubleOpcodes.containsKey(key)) {
+                    doubleOpcodes.put(key, i);
+                }
+            }
+        }
+    }
+
+    private static int key(int type, int size, int mode) {
+        return (type << 16) | ((mode & 0xff) << 8) | size;
     }
 
     /**
@@ -133,4 +183,48 @@ public class CodeTable {
         return entries[instructionIndex][i];
     }
 
+    /**
+     * find the opcode of a single instruction.
+     * @param size the size in opcode, 0 means the size is written after opcode.
+     * @return the opcode, -1 if not found.
+     */
+    public int findOpcode(int type, int size, int mode) {
+        Integer opcode = singleOpcodes.get(key(type, size, mode));
+        return opcode == null ? -1 : opcode;
+    }
+
+    /**
+     * find the opcode of two instructions.
+     * @return the opcode, -1 if not found.
+     */
+    public int findOpcode(int type1, int size1, int mode1, int type2, int size2, int mode2) {
+        long key = ((long) key(type1, size1, mode1) << 32) | key(type2, size2, mode2);
+        Integer opcode = doubleOpcodes.get(key);
+        return opcode == null ? -1 : opcode;
+    }
+
+    /**
+     * instruction types of all half instructions, indexed by (instructionIndex << 1) | i.
+     * shared with code table, should not be modified.
+     */
+    public byte[] getTypes() {
+        return types;
+    }
+
+    /**
+     * instruction sizes of all half instructions, 0 means size is in instruction section.
+     * shared with code table, should not be modified.
+     */
+    public int[] getSizes() {
+        return sizes;
+    }
+
+    /**
+     * copy address modes of all half instructions.
+     * shared with code table, should not be modified.
+     */
+    public byte[] getModes() {
+        return modes;
+    }
+
 }
@@ -0,0 +1,359 @@
+package net.dongliu.jvcdiff.vcdiff.codetable;
+
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Generates a code table and address cache sizes from instructions of encoded patches.
+ * Instructions are recorded when encoding, with addresses of COPYs. For each candidate cache size,
+ * the address modes are worked out by the address cache, the most frequent instruction sizes
+ * and instruction pairs get their own opcodes, and the table with the fewest bytes of instructions,
+ * addresses and table in patch headers is chosen.
+ * Record methods are thread safe.
+ *
+ * @author dongliu
+ */
+public class CodeTableGenerator {
+
+    /** at most this many instructions are recorded, the rest is ignored. */
+    private static final int MAX_RECORDS = 1 << 21;
+
+    private static final int[] NEAR_SIZES = {0, 2, 4, 6, 8};
+    private static final int[] SAME_SIZES = {0, 1, 2, 3, 4};
+
+    /** patches recorded, each of them carries the code table. */
+    private int patches;
+
+    /** recorded instructions. type NO_OP marks the start of a window. */
+    private int count;
+    private byte[] types = new byte[1024];
+    private int[] sizes = new int[1024];
+    private int[] addresses = new int[1024];
+    private int[] heres = new int[1024];
+
+    private CodeTable codeTable = CodeTable.Default;
+    private int nearSize = 4;
+    private int sameSize = 3;
+
+    /**
+     * mark the start of a patch.
+     */
+    public synchronized void addPatch() {
+        patches++;
+    }
+
+    /**
+     * mark the start of a window, address caches are reset at the start of window.
+     */
+    public synchronized void addWindow() {
+        add(CodeTable.TYPE_NO_OP, 0, 0, 0);
+    }
+
+    /**
+     * record an instruction.
+     * @param address address of COPY, 0 for others.
+     * @param here the current location in the target data, for COPY.
+     */
+    public synchronized void add(int type, int size, int address, int here) {
+        if (count == MAX_RECORDS) {
+            return;
+        }
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            sizes = Arrays.copyOf(sizes, count * 2);
+            addresses = Arrays.copyOf(addresses, count * 2);
+            heres = Arrays.copyOf(heres, count * 2);
+        }
+        types[count] = (byte) type;
+        sizes[count] = size;
+        addresses[count] = address;
+        heres[count] = here;
+        count++;
+    }
+
+    /**
+     * record all instructions of other, the windows of other are kept together.
+     */
+    public void addAll(CodeTableGenerator other) {
+        synchronized (other) {
+            synchronized (this) {
+                for (int i = 0; i < other.count; i++) {
+                    add(other.types[i], other.sizes[i], other.addresses[i], other.heres[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * drop instructions recorded.
+     */
+    public synchronized void clear() {
+        patches = 0;
+        count = 0;
+    }
+
+    /**
+     * generate code table from instructions recorded.
+     * the default code table is kept if no table is better.
+     */
+    public synchronized void generate() throws IOException {
+        codeTable = CodeTable.Default;
+        nearSize = 4;
+        sameSize = 3;
+        CountingOutputStream defaultAddressBytes = new CountingOutputStream();
+        byte[] defaultModes = modes(4, 3, defaultAddressBytes);
+        long bestCost = defaultAddressBytes.count + cost(CodeTable.Default, defaultModes);
+        for (int near : NEAR_SIZES) {
+            for (int same : SAME_SIZES) {
+                CountingOutputStream addressBytes = new CountingOutputStream();
+                byte[] modes = modes(near, same, addressBytes);
+                CodeTable table = buildTable(near, same, modes);
+                long cost = addressBytes.count + cost(table, modes) + Math.max(patches, 1) * tableCost(table);
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    codeTable = table;
+                    nearSize = near;
+                    sameSize = same;
+                }
+            }
+        }
+    }
+
+    /**
+     * the code table generated, default code table before generate.
+     */
+    public synchronized CodeTable getCodeTable() {
+        return codeTable;
+    }
+
+    public synchronized int getNearSize() {
+        return nearSize;
+    }
+
+    public synchronized int getSameSize() {
+        return sameSize;
+    }
+
+    /**
+     * address mode of each COPY with the cache sizes.
+     * @param addressBytes addresses encoded are written to it, may be null.
+     */
+    private byte[] modes(int near, int same, OutputStream addressBytes) throws IOException {
+        if (addressBytes == null) {
+            addressBytes = new CountingOutputStream();
+        }
+        AddressCache cache = new AddressCache(near, same);
+        byte[] modes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            if (types[i] == CodeTable.TYPE_NO_OP) {
+                cache.reset();
+            } else if (types[i] == CodeTable.TYPE_COPY) {
+                modes[i] = (byte) cache.encodeAddress(addresses[i], heres[i], addressBytes);
+            }
+        }
+        return modes;
+    }
+
+    /**
+     * bytes of instructions and sizes encoded with the code table.
+     */
+    private long cost(CodeTable table, byte[] modes) throws IOException {
+        CountingOutputStream instructionBytes = new CountingOutputStream();
+        InstructionEncoder encoder = new InstructionEncoder(table);
+        for (int i = 0; i < count; i++) {
+            if (types[i] == CodeTable.TYPE_NO_OP) {
+                encoder.flush(instructionBytes);
+            } else {
+                encoder.encode(types[i], sizes[i], modes[i], instructionBytes);
+            }
+        }
+        encoder.flush(instructionBytes);
+        return instructionBytes.count;
+    }
+
+    /**
+     * opcodes with size 0 for every instruction type and mode are required, so any instruction
+     * can be encoded; the rest of opcodes go to the single instructions and pairs saving most bytes.
+     * a single instruction with size in opcode saves the size bytes, a pair saves one opcode.
+     * entries are kept at their index in default table if possible, and the other entries of
+     * default table are kept, so the table is small when delta encoded against default table.
+     */
+    private CodeTable buildTable(int near, int same, byte[] modes) {
+        Map<Long, Candidate> candidates = new HashMap<Long, Candidate>();
+        for (int i = 0; i < count; i++) {
+            if (types[i] == CodeTable.TYPE_NO_OP || sizes[i] > 255) {
+                continue;
+            }
+            long single = key(types[i], sizes[i], modes[i]);
+            candidate(candidates, single, IOUtils.sizeOf7bitInt(sizes[i]));
+            int next = i + 1;
+            if (next < count && types[next] != CodeTable.TYPE_NO_OP && sizes[next] <= 255) {
+                candidate(candidates, (single << 32) | key(types[next], sizes[next], modes[next]), 1);
+            }
+        }
+        List<Candidate> sorted = new ArrayList<Candidate>(candidates.values());
+        Collections.sort(sorted, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate c1, Candidate c2) {
+                if (c1.saving != c2.saving) {
+                    return c1.saving > c2.saving ? -1 : 1;
+                }
+                return c1.key < c2.key ? -1 : (c1.key == c2.key ? 0 : 1);
+            }
+        });
+
+        int modeCount = near + same + 2;
+        List<Long> wanted = new ArrayList<Long>();
+        wanted.add(key(CodeTable.TYPE_RUN, 0, 0));
+        wanted.add(key(CodeTable.TYPE_ADD, 0, 0));
+        for (int mode = 0; mode < modeCount; mode++) {
+            wanted.add(key(CodeTable.TYPE_COPY, 0, mode));
+        }
+        for (int i = 0; i < sorted.size() && wanted.size() < 256; i++) {
+            wanted.add(sorted.get(i).key);
+        }
+
+        long[] defaultEntries = entries(CodeTable.Default);
+        Map<Long, Integer> defaultIndexes = new HashMap<Long, Integer>();
+        for (int i = 255; i >= 0; i--) {
+            defaultIndexes.put(defaultEntries[i], i);
+        }
+        long[] layout = new long[256];
+        boolean[] used = new boolean[256];
+        List<Long> unplaced = new ArrayList<Long>();
+        for (Long key : wanted) {
+            Integer index = defaultIndexes.get(key);
+            if (index != null && !used[index]) {
+                layout[index] = key;
+                used[index] = true;
+            } else {
+                unplaced.add(key);
+            }
+        }
+        // entries of default table with invalid mode are replaced first.
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < 256 && !unplaced.isEmpty(); i++) {
+                if (!used[i] && (pass == 1 || !validEntry(defaultEntries[i], modeCount))) {
+                    layout[i] = unplaced.remove(0);
+                    used[i] = true;
+                }
+            }
+        }
+        byte[] bytes = new byte[1536];
+        for (int i = 0; i < 256; i++) {
+            if (!used[i] && validEntry(defaultEntries[i], modeCount)) {
+                layout[i] = defaultEntries[i];
+            }
+            // the rest are NO_OP pairs.
+            entry(bytes, i, layout[i]);
+        }
+        return new CodeTable(bytes);
+    }
+
+    /**
+     * entries of code table as keys.
+     */
+    private static long[] entries(CodeTable table) {
+        byte[] tableTypes = table.getTypes();
+        int[] tableSizes = table.getSizes();
+        byte[] tableModes = table.getModes();
+        long[] entries = new long[256];
+        for (int i = 0; i < 256; i++) {
+            long first = key(tableTypes[i << 1], tableSizes[i << 1], tableModes[i << 1]);
+            int j = (i << 1) | 1;
+            if (tableTypes[j] == CodeTable.TYPE_NO_OP) {
+                entries[i] = first;
+            } else {
+                entries[i] = (first << 32) | key(tableTypes[j], tableSizes[j], tableModes[j]);
+            }
+        }
+        return entries;
+    }
+
+    private static boolean validEntry(long key, int modeCount) {
+        return ((key >>> 40) & 0xff) < modeCount && ((key >>> 8) & 0xff) < modeCount;
+    }
+
+    /**
+     * estimated bytes of the table in patch header, encoded against default table:
+     * bytes differ are added, and the rest copied.
+     */
+    private static long tableCost(CodeTable table) {
+        byte[] bytes = table.getBytes();
+        byte[] defaultBytes = CodeTable.Default.getBytes();
+        long cost = 0;
+        boolean inDiff = false;
+        for (int i = 0; i < bytes.length; i++) {
+            boolean diff = bytes[i] != defaultBytes[i];
+            if (diff) {
+                cost += inDiff ? 1 : 4;
+            }
+            inDiff = diff;
+        }
+        // header and window of the delta
+        return cost == 0 ? 0 : cost + 16;
+    }
+
+    private static long key(int type, int size, int mode) {
+        return (type << 16) | (mode << 8) | size;
+    }
+
+    private static void candidate(Map<Long, Candidate> candidates, long key, int saving) {
+        Candidate candidate = candidates.get(key);
+        if (candidate == null) {
+            candidate = new Candidate(key);
+            candidates.put(key, candidate);
+        }
+        candidate.saving += saving;
+    }
+
+    /**
+     * write an entry of one or two instructions to table bytes.
+     */
+    private static void entry(byte[] bytes, int index, long key) {
+        long first = key >>> 32;
+        long second = key & 0xffffffffL;
+        if (first == 0) {
+            first = second;
+            second = 0;
+        }
+        bytes[index] = (byte) (first >>> 16);
+        bytes[index + 512] = (byte) first;
+        bytes[index + 1024] = (byte) (first >>> 8);
+        bytes[index + 256] = (byte) (second >>> 16);
+        bytes[index + 768] = (byte) second;
+        bytes[index + 1280] = (byte) (second >>> 8);
+    }
+
+    private static class Candidate {
+        private final long key;
+        private long saving;
+
+        Candidate(long key) {
+            this.key = key;
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.dongliu.jvcdiff.vcdiff.codetable;
+
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes instructions to opcodes of a code table.
+ * The last instruction is held back, so it can share one opcode with the next if the
+ * code table has such an entry.
+ *
+ * @author dongliu
+ */
+public class InstructionEncoder {
+
+    private final CodeTable codeTable;
+
+    /** the instruction held back, type is NO_OP if none. */
+    private int pendingType = CodeTable.TYPE_NO_OP;
+    private int pendingSize;
+    private int pendingMode;
+
+    public InstructionEncoder(CodeTable codeTable) {
+        this.codeTable = codeTable;
+    }
+
+    /**
+     * add an instruction.
+     * @param mode address mode for COPY, 0 for others.
+     * @param instructions the instructions and sizes section to write to
+     * @throws IOException
+     */
+    public void encode(int type, int size, int mode, OutputStream instructions) throws IOException {
+        if (pendingType != CodeTable.TYPE_NO_OP) {
+            if (encodeDouble(type, size, mode, instructions)) {
+                pendingType = CodeTable.TYPE_NO_OP;
+                return;
+            }
+            flush(instructions);
+        }
+        pendingType = type;
+        pendingSize = size;
+        pendingMode = mode;
+    }
+
+    /**
+     * write the instruction held back.
+     * @throws IOException
+     */
+    public void flush(OutputStream instructions) throws IOException {
+        if (pendingType == CodeTable.TYPE_NO_OP) {
+            return;
+        }
+        int opcode = size(pendingSize) == 0 ? -1 : codeTable.findOpcode(pendingType, pendingSize, pendingMode);
+        if (opcode >= 0) {
+            instructions.write(opcode);
+        } else {
+            opcode = codeTable.findOpcode(pendingType, 0, pendingMode);
+            if (opcode < 0) {
+                throw new IllegalStateException("No opcode in code table for instruction type "
+                        + pendingType + " mode " + pendingMode);
+            }
+            instructions.write(opcode);
+            IOUtils.write7bitIntBE(instructions, pendingSize);
+        }
+        pendingType = CodeTable.TYPE_NO_OP;
+    }
+
+    /**
+     * try to write pending instruction and this one with one opcode.
+     */
+    private boolean encodeDouble(int type, int size, int mode, OutputStream instructions)
+            throws IOException {
+        // try sizes in opcode first, then sizes written after opcode.
+        for (int i = 0; i < 4; i++) {
+            int size1 = (i & 1) == 0 ? size(pendingSize) : 0;
+            int size2 = (i & 2) == 0 ? size(size) : 0;
+            if (i != 0 && size1 != 0 && size2 != 0) {
+                continue;
+            }
+            int opcode = codeTable.findOpcode(pendingType, size1, pendingMode, type, size2, mode);
+            if (opcode >= 0) {
+                instructions.write(opcode);
+                if (size1 == 0) {
+                    IOUtils.write7bitIntBE(instructions, pendingSize);
+                }
+                if (size2 == 0) {
+                    IOUtils.write7bitIntBE(instructions, size);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * size usable in an opcode, 0 if too large.
+     */
+    private static int size(int size) {
+        return size > 255 ? 0 : size;
+    }
+}
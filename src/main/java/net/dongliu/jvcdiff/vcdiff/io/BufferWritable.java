@@ -0,0 +1,18 @@
+package net.dongliu.jvcdiff.vcdiff.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A target stream which takes data from byte buffers directly, e.g. by channel writes,
+ * so data in direct buffers need not be copied to a byte array first.
+ *
+ * @author dongliu
+ */
+public interface BufferWritable {
+
+    /**
+     * write all remaining data of buffer at current pos.
+     */
+    void write(ByteBuffer data) throws IOException;
+}
@@ -10,7 +10,7 @@ import java.nio.ByteBuffer;
  * @author dongliu
  *
  */
-public class ByteBufferSeekableStream implements SeekableStream {
+public class ByteBufferSeekableStream implements SeekableStream, PositionalReadable {
     
     private ByteBuffer buffer;
     
@@ -37,11 +37,11 @@ public class ByteBufferSeekableStream implements SeekableStream {
     }
 
     @Override
-    public void seek(int pos) throws IOException {
+    public void seek(long pos) throws IOException {
         if (pos < 0 || pos > this.buffer.limit()) {
             throw new IOException("Not a seekable pos, larger than lengh or less than zero.");
         }
-        this.buffer.position(pos);
+        this.buffer.position((int) pos);
     }
 
     @Override
@@ -51,7 +51,7 @@ public class ByteBufferSeekableStream implements SeekableStream {
     }
 
     @Override
-    public int pos() throws IOException {
+    public long pos() throws IOException {
         return this.buffer.position();
     }
 
@@ -90,7 +90,19 @@ public class ByteBufferSeekableStream implements SeekableStream {
     }
 
     @Override
-    public int length() throws IOException {
+    public int read(long pos, byte[] data, int offset, int length) {
+        ByteBuffer view = this.buffer.duplicate();
+        if (pos >= view.limit()) {
+            return -1;
+        }
+        view.position((int) pos);
+        int byteRead = Math.min(length, view.remaining());
+        view.get(data, offset, byteRead);
+        return byteRead;
+    }
+
+    @Override
+    public long length() throws IOException {
         return this.buffer.limit();
     }
 
@@ -3,6 +3,7 @@ package net.dongliu.jvcdiff.vcdiff.io;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 
@@ -12,11 +13,18 @@ import java.nio.channels.FileChannel;
  * @author dongliu
  *
  */
-public class FileSeekableStream implements SeekableStream {
+public class FileSeekableStream implements SeekableStream, BufferWritable, PositionalReadable {
+
+    /** min size of region mapped by slice, so that nearby slices can share one mapping. */
+    private static final int MAP_CHUNK_SIZE = 64 * 1024 * 1024;
 
     private final boolean readOnly;
     private final RandomAccessFile raf;
 
+    /** the region last mapped by slice. */
+    private MappedByteBuffer mapped;
+    private long mappedPos;
+
     /**
      * Constructs a new RandomAccessFileSeekableSource.
      * @param file
@@ -34,12 +42,12 @@ public class FileSeekableStream implements SeekableStream {
         this.readOnly = readOnly;
     }
 
-    public void seek(int pos) throws IOException {
+    public void seek(long pos) throws IOException {
         raf.seek(pos);
     }
     
-    public int pos() throws IOException{
-        return (int) raf.getFilePointer();
+    public long pos() throws IOException{
+        return raf.getFilePointer();
     }
 
     @Override
@@ -47,13 +55,22 @@ public class FileSeekableStream implements SeekableStream {
         return raf.read(b, off, len);
     }
 
+    /**
+     * read with the file channel, which does not move file pointer.
+     */
+    @Override
+    public int read(long pos, byte[] data, int offset, int length) throws IOException {
+        return raf.getChannel().read(ByteBuffer.wrap(data, offset, length), pos);
+    }
+
     @Override
-    public int length() throws IOException {
-        return (int) raf.length();
+    public long length() throws IOException {
+        return raf.length();
     }
 
     @Override
     public void close() throws IOException {
+        mapped = null;
         raf.close();
     }
 
@@ -73,6 +90,20 @@ public class FileSeekableStream implements SeekableStream {
         this.raf.write(b);
     }
 
+    /**
+     * write through the file channel, which shares position with the file.
+     */
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        if (readOnly) {
+            throw new UnsupportedOperationException();
+        }
+        FileChannel fc = this.raf.getChannel();
+        while (data.hasRemaining()) {
+            fc.write(data);
+        }
+    }
+
     @Override
     public SeekableStream asReadonly() {
         try {
@@ -97,11 +128,19 @@ public class FileSeekableStream implements SeekableStream {
     public SeekableStream slice(int length) throws IOException {
         // use bytebuffer to slice.
         // this strategy is SPECIALLY for jvcdiff use.
-        FileChannel fc = this.raf.getChannel();
-        MappedByteBuffer buffer = fc.map(FileChannel.MapMode.READ_ONLY,
-                this.raf.getFilePointer(), length);
-        this.raf.seek(this.raf.getFilePointer() + length);
-        return new ByteBufferSeekableStream(buffer);
+        long pos = this.raf.getFilePointer();
+        if (mapped == null || pos < mappedPos || pos + length > mappedPos + mapped.capacity()) {
+            // map a larger region than required, following slices mostly fall into it.
+            long mapLength = Math.max(length, Math.min(MAP_CHUNK_SIZE, this.raf.length() - pos));
+            FileChannel fc = this.raf.getChannel();
+            mapped = fc.map(FileChannel.MapMode.READ_ONLY, pos, mapLength);
+            mappedPos = pos;
+        }
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((int) (pos - mappedPos));
+        buffer.limit(buffer.position() + length);
+        this.raf.seek(pos + length);
+        return new ByteBufferSeekableStream(buffer.slice());
     }
 
     
@@ -6,6 +6,8 @@ import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * IOUtils form vcdiff.
@@ -96,6 +98,97 @@ public class IOUtils {
         throw new IOException("Invalid 7-bit encoded integer in stream.");
     }
 
+    /**
+     * read 7 bit enconded int.by bigendian.
+     * @return
+     * @throws IOException
+     */
+    public static int read7bitIntBE(ByteBuffer buffer) throws IOException {
+        int ret = 0;
+        for (int i = 0; i < 5; i++) {
+            if (!buffer.hasRemaining()) {
+                throw new IndexOutOfBoundsException(
+                        "Not enough data in buffer.");
+            }
+            int b = buffer.get();
+            ret = (ret << 7) | (b & 0x7f);
+            // end of int encoded.
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        // Still haven't seen a byte with the high bit unset? Dodgy data.
+        throw new IOException("Invalid 7-bit encoded integer in buffer.");
+    }
+
+    /**
+     * write 7 bit enconded int.by bigendian.
+     * @throws IOException
+     */
+    public static void write7bitIntBE(OutputStream os, long value) throws IOException {
+        int size = sizeOf7bitInt(value);
+        for (int i = size - 1; i > 0; i--) {
+            // high bit set: more bytes follow.
+            os.write((int) ((value >>> (7 * i)) & 0x7f) | 0x80);
+        }
+        os.write((int) (value & 0x7f));
+    }
+
+    /**
+     * bytes needed to encode value as 7 bit enconded int.
+     */
+    public static int sizeOf7bitInt(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value cannot be 7 bit encoded.");
+        }
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * read 7 bit enconded long.by bigendian.
+     * @return
+     * @throws IOException
+     */
+    public static long read7bitLongBE(ByteBuffer buffer) throws IOException {
+        long ret = 0;
+        for (int i = 0; i < 10; i++) {
+            if (!buffer.hasRemaining()) {
+                throw new IndexOutOfBoundsException(
+                        "Not enough data in buffer.");
+            }
+            int b = buffer.get();
+            ret = (ret << 7) | (b & 0x7f);
+            // end of long encoded.
+            if ((b & 0x80) == 0) {
+                return ret;
+            }
+        }
+        // Still haven't seen a byte with the high bit unset? Dodgy data.
+        throw new IOException("Invalid 7-bit encoded long in buffer.");
+    }
+
+    /**
+     * get a view of the next length bytes of buffer.
+     * side effect: buffer's postion will increase length.
+     * @return
+     */
+    public static ByteBuffer slice(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IndexOutOfBoundsException(
+                    "Not enough data in buffer, require:" + length);
+        }
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        ByteBuffer view = buffer.slice();
+        buffer.limit(limit);
+        buffer.position(buffer.position() + length);
+        return view;
+    }
+
     /**
      * 
      * @param source
@@ -105,17 +198,27 @@ public class IOUtils {
      */
     public static byte[] readBytes(SeekableStream source, int size) throws IOException {
         byte[] data = new byte[size];
-        int offset = 0;
-        while (offset < size) {
-            int readSize = source.read(data, offset, size - offset);
+        readFully(source, data, 0, size);
+        return data;
+    }
+
+    /**
+     * read exactly length bytes from source into data.
+     * throw exception when not enough data in source.
+     * @throws IOException
+     */
+    public static void readFully(SeekableStream source, byte[] data, int offset, int length)
+            throws IOException {
+        int end = offset + length;
+        while (offset < end) {
+            int readSize = source.read(data, offset, end - offset);
             if (readSize < 0) {
                 // end of is
                 throw new IndexOutOfBoundsException(
-                        "Not enough data in inputstream, require:" + (size - offset));
+                        "Not enough data in inputstream, require:" + (end - offset));
             }
             offset += readSize;
         }
-        return data;
     }
     
     /**
@@ -0,0 +1,413 @@
+package net.dongliu.jvcdiff.vcdiff.io;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes and reads a file through memory mapped chunks, for patch target.
+ * The file is preallocated to the expected size and grows if more is written, it is truncated to
+ * the data written when closed. Reading data written, e.g. for windows using target data as source,
+ * needs no seek or read on the file.
+ * Data can also be decoded straight into the mapping, see {@link #mapForWrite(int)}.
+ * At most a few chunks are mapped, chunks evicted are unmapped at once, so address space used
+ * does not grow with target size. Slices read through the chunks of this stream and hold no mapping.
+ * Mappings are released when closed, slices and views got from this stream must not be used after.
+ * Not thread safe.
+ *
+ * @author dongliu
+ */
+public class MappedFileSeekableStream implements SeekableStream, BufferWritable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    /** most recently used chunks kept mapped. */
+    private static final int MAX_MAPPED_CHUNKS = 4;
+
+    private final RandomAccessFile raf;
+
+    private final FileChannel channel;
+
+    private final int chunkSize;
+
+    /** file size. */
+    private long capacity;
+
+    /** end of data written. */
+    private long length;
+
+    private long pos;
+
+    /** mapped chunks by chunk number, in access order. */
+    private final LinkedHashMap<Long, MappedByteBuffer> chunks
+            = new LinkedHashMap<Long, MappedByteBuffer>(16, 0.75f, true);
+
+    /** chunk the view from mapForWrite is in, kept mapped until the write is committed. -1 if none. */
+    private long writeChunk = -1;
+
+    /** chunks evicted while the write view is in them, unmapped when the write is committed. */
+    private final List<MappedByteBuffer> retired = new ArrayList<MappedByteBuffer>();
+
+    /**
+     * @param file the file, opened for write. data in it is overwritten.
+     * @param expectedLength size to preallocate, e.g. target length from {@code PatchInfo}.
+     */
+    public MappedFileSeekableStream(RandomAccessFile file, long expectedLength) throws IOException {
+        this(file, expectedLength, DEFAULT_CHUNK_SIZE);
+    }
+
+    public MappedFileSeekableStream(RandomAccessFile file, long expectedLength, int chunkSize)
+            throws IOException {
+        if (file == null) {
+            throw new NullPointerException();
+        }
+        this.raf = file;
+        this.channel = file.getChannel();
+        this.chunkSize = chunkSize;
+        this.capacity = expectedLength;
+        raf.setLength(capacity);
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < 0 || pos > capacity) {
+            throw new IOException("Not a seekable pos, larger than lengh or less than zero.");
+        }
+        this.pos = pos;
+    }
+
+    @Override
+    public long pos() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (pos >= this.length) {
+            return -1;
+        }
+        ByteBuffer chunk = chunkAt(pos);
+        int size = (int) Math.min(Math.min(length, this.length - pos), chunk.remaining());
+        chunk.get(data, offset, size);
+        pos += size;
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos >= this.length) {
+            return -1;
+        }
+        int b = chunkAt(pos).get() & 0xff;
+        pos++;
+        return b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ensureCapacity(pos + length);
+        int end = offset + length;
+        while (offset < end) {
+            ByteBuffer chunk = chunkAt(pos);
+            int size = Math.min(end - offset, chunk.remaining());
+            chunk.put(data, offset, size);
+            offset += size;
+            pos += size;
+        }
+        this.length = Math.max(this.length, pos);
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        ensureCapacity(pos + data.remaining());
+        int limit = data.limit();
+        while (data.hasRemaining()) {
+            ByteBuffer chunk = chunkAt(pos);
+            int size = Math.min(data.remaining(), chunk.remaining());
+            data.limit(data.position() + size);
+            chunk.put(data);
+            data.limit(limit);
+            pos += size;
+        }
+        this.length = Math.max(this.length, pos);
+    }
+
+    @Override
+    public void write(byte b) throws IOException {
+        ensureCapacity(pos + 1);
+        chunkAt(pos).put(b);
+        pos++;
+        this.length = Math.max(this.length, pos);
+    }
+
+    /**
+     * data written so far.
+     */
+    @Override
+    public long length() throws IOException {
+        return length;
+    }
+
+    /**
+     * a file stream on the same file, reads see data written here.
+     */
+    @Override
+    public SeekableStream asReadonly() {
+        try {
+            return new FileSeekableStream(raf, true);
+        } catch (FileNotFoundException ignore) {
+            // should never happen.
+            return this;
+        }
+    }
+
+    /**
+     * a stream reading chunks of this stream, so chunks can be unmapped while the slice is in use.
+     * the slice is valid until this stream is closed.
+     */
+    @Override
+    public SeekableStream slice(int length) throws IOException {
+        if (pos + length > capacity) {
+            throw new IndexOutOfBoundsException("Not enough data in stream, require:" + length);
+        }
+        SeekableStream slice = new ChunkedSlice(pos, length);
+        pos += length;
+        return slice;
+    }
+
+    /**
+     * a writable view of the mapping at current pos, for data of length to be put straight in.
+     * the data is written when {@link #commitWrite(int)} is called; the view is valid until this
+     * stream is closed.
+     * @return the view, positioned at 0; null if the data would span chunks.
+     */
+    public ByteBuffer mapForWrite(int length) throws IOException {
+        if (length <= 0 || !inOneChunk(pos, length)) {
+            return null;
+        }
+        ensureCapacity(pos + length);
+        ByteBuffer buffer = chunkAt(pos);
+        buffer.limit(buffer.position() + length);
+        writeChunk = pos / chunkSize;
+        return buffer.slice();
+    }
+
+    /**
+     * data of length has been put in the view from {@link #mapForWrite(int)}, move pos after it.
+     */
+    public void commitWrite(int length) throws IOException {
+        ensureCapacity(pos + length);
+        pos += length;
+        this.length = Math.max(this.length, pos);
+        writeChunk = -1;
+        for (MappedByteBuffer chunk : retired) {
+            release(chunk);
+        }
+        retired.clear();
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * flush and release mappings, truncate file to data written, and close it.
+     * slices and views of the mapping die here.
+     */
+    @Override
+    public void close() throws IOException {
+        retired.addAll(chunks.values());
+        chunks.clear();
+        writeChunk = -1;
+        try {
+            for (MappedByteBuffer chunk : retired) {
+                release(chunk);
+            }
+            retired.clear();
+            if (capacity != length) {
+                raf.setLength(length);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * stop keeping chunk mapped, it is unmapped unless the write view is in it.
+     */
+    private void retire(long chunkNo, MappedByteBuffer chunk) {
+        if (chunkNo == writeChunk) {
+            retired.add(chunk);
+        } else {
+            release(chunk);
+        }
+    }
+
+    private static void release(MappedByteBuffer chunk) {
+        chunk.force();
+        unmap(chunk);
+    }
+
+    /**
+     * release mapping now instead of when it is garbage collected, a file can not be truncated
+     * while mapped on some platforms. left to gc if the jvm does not support this.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ignore) {
+        }
+    }
+
+    /**
+     * chunks mapped now.
+     */
+    int mappedChunks() {
+        return chunks.size() + retired.size();
+    }
+
+    private boolean inOneChunk(long pos, int length) {
+        return pos / chunkSize == (pos + length - 1) / chunkSize;
+    }
+
+    /**
+     * grow file to at least size, by half of the size at least.
+     */
+    private void ensureCapacity(long size) throws IOException {
+        if (size <= capacity) {
+            return;
+        }
+        capacity = Math.max(size, capacity + capacity / 2);
+        raf.setLength(capacity);
+        // the last chunk may be mapped shorter than it is now.
+        for (Map.Entry<Long, MappedByteBuffer> entry : chunks.entrySet()) {
+            retire(entry.getKey(), entry.getValue());
+        }
+        chunks.clear();
+    }
+
+    /**
+     * view of the chunk containing pos, positioned at pos.
+     */
+    private ByteBuffer chunkAt(long pos) throws IOException {
+        long chunkNo = pos / chunkSize;
+        MappedByteBuffer chunk = chunks.get(chunkNo);
+        if (chunk == null) {
+            long chunkPos = chunkNo * chunkSize;
+            chunk = channel.map(FileChannel.MapMode.READ_WRITE, chunkPos, Math.min(chunkSize, capacity - chunkPos));
+            chunks.put(chunkNo, chunk);
+            Iterator<Map.Entry<Long, MappedByteBuffer>> iterator = chunks.entrySet().iterator();
+            while (chunks.size() > MAX_MAPPED_CHUNKS) {
+                Map.Entry<Long, MappedByteBuffer> eldest = iterator.next();
+                retire(eldest.getKey(), eldest.getValue());
+                iterator.remove();
+            }
+        }
+        ByteBuffer buffer = chunk.duplicate();
+        buffer.position((int) (pos - chunkNo * chunkSize));
+        return buffer;
+    }
+
+    /**
+     * data in [start, start + length) spanning chunks, read through chunks of the stream.
+     */
+    private class ChunkedSlice implements SeekableStream {
+        private final long start;
+        private final long length;
+        private long pos;
+
+        ChunkedSlice(long start, long length) {
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public void seek(long pos) throws IOException {
+            if (pos < 0 || pos > length) {
+                throw new IOException("Not a seekable pos, larger than lengh or less than zero.");
+            }
+            this.pos = pos;
+        }
+
+        @Override
+        public long pos() throws IOException {
+            return pos;
+        }
+
+        @Override
+        public int read(byte[] data, int offset, int length) throws IOException {
+            if (pos >= this.length) {
+                return -1;
+            }
+            ByteBuffer chunk = chunkAt(start + pos);
+            int size = (int) Math.min(Math.min(length, this.length - pos), chunk.remaining());
+            chunk.get(data, offset, size);
+            pos += size;
+            return size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (pos >= this.length) {
+                return -1;
+            }
+            int b = chunkAt(start + pos).get() & 0xff;
+            pos++;
+            return b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void write(byte b) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long length() throws IOException {
+            return length;
+        }
+
+        @Override
+        public SeekableStream asReadonly() {
+            return this;
+        }
+
+        @Override
+        public SeekableStream slice(int length) throws IOException {
+            if (pos + length > this.length) {
+                throw new IndexOutOfBoundsException("Not enough data in stream, require:" + length);
+            }
+            SeekableStream slice = new ChunkedSlice(start + pos, length);
+            pos += length;
+            return slice;
+        }
+
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
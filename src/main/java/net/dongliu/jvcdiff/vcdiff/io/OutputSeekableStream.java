@@ -0,0 +1,177 @@
+package net.dongliu.jvcdiff.vcdiff.io;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Wraps an output stream / writable channel as a target stream.
+ * Data can only be appended, and only recently written data (the history) can be read back,
+ * which is enough for target windows using VCD_TARGET source.
+ *
+ * @author dongliu
+ */
+public class OutputSeekableStream implements SeekableStream, BufferWritable {
+
+    /** default size of target history retained. */
+    public static final int DEFAULT_HISTORY_SIZE = 16 * 1024 * 1024;
+
+    private final WritableByteChannel channel;
+
+    private final int historySize;
+
+    /** history data, capacity is twice of historySize so compacting is not frequent. */
+    private final byte[] history;
+
+    /** the last historyLen bytes written are in history[0, historyLen). */
+    private int historyLen;
+
+    /** total bytes written. */
+    private long written;
+
+    /** pos for read, in [written - historyLen, written]. */
+    private long pos;
+
+    private final byte[] oneByte = new byte[1];
+
+    public OutputSeekableStream(OutputStream os) {
+        this(Channels.newChannel(os), DEFAULT_HISTORY_SIZE);
+    }
+
+    public OutputSeekableStream(WritableByteChannel channel) {
+        this(channel, DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * @param historySize at least the last historySize bytes written can be read back.
+     */
+    public OutputSeekableStream(WritableByteChannel channel, int historySize) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        this.channel = channel;
+        this.historySize = historySize;
+        this.history = new byte[historySize * 2];
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos < written - historyLen || pos > written) {
+            throw new IOException("Position is out of retained target history.");
+        }
+        this.pos = pos;
+    }
+
+    @Override
+    public long pos() throws IOException {
+        return pos;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) throws IOException {
+        if (pos == written) {
+            return -1;
+        }
+        int size = (int) Math.min(length, written - pos);
+        System.arraycopy(history, historyIndex(pos), data, offset, size);
+        pos += size;
+        return size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos == written) {
+            return -1;
+        }
+        return history[historyIndex(pos++)] & 0xff;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        write(ByteBuffer.wrap(data, offset, length));
+    }
+
+    @Override
+    public void write(ByteBuffer data) throws IOException {
+        if (pos != written) {
+            throw new IOException("Can only append to the end of output stream.");
+        }
+        int length = data.remaining();
+        ByteBuffer remembered = data.duplicate();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+        remember(remembered);
+        written += length;
+        pos = written;
+    }
+
+    @Override
+    public void write(byte b) throws IOException {
+        oneByte[0] = b;
+        write(oneByte, 0, 1);
+    }
+
+    @Override
+    public long length() throws IOException {
+        return written;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * output stream cannot be read from other places.
+     */
+    @Override
+    public SeekableStream asReadonly() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * the data of slice is shared with history, only valid until next write.
+     */
+    @Override
+    public SeekableStream slice(int length) throws IOException {
+        if (length > written - pos) {
+            throw new IndexOutOfBoundsException("Not enough data in target history.");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(history, historyIndex(pos), length).slice();
+        pos += length;
+        return new ByteBufferSeekableStream(buffer.asReadOnlyBuffer());
+    }
+
+    @Override
+    public boolean isReadOnly() {
+        return false;
+    }
+
+    private int historyIndex(long pos) {
+        return (int) (pos - (written - historyLen));
+    }
+
+    /**
+     * append data to history, drop the oldest data if history is full.
+     */
+    private void remember(ByteBuffer data) {
+        int length = data.remaining();
+        if (length >= historySize) {
+            data.position(data.limit() - historySize);
+            data.get(history, 0, historySize);
+            historyLen = historySize;
+            return;
+        }
+        if (historyLen + length > history.length) {
+            // keep the newest bytes, so history has historySize bytes after append.
+            int keep = historySize - length;
+            System.arraycopy(history, historyLen - keep, history, 0, keep);
+            historyLen = keep;
+        }
+        data.get(history, historyLen, length);
+        historyLen += length;
+    }
+}
@@ -0,0 +1,363 @@
+package net.dongliu.jvcdiff.vcdiff.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.Adler32;
+
+/**
+ * Buffered cursor over vcdiff patch data.
+ * Data is pulled from the channel in bulk, bytes and 7 bit encoded ints are decoded
+ * straight from the buffer, and a whole window can be handed out as one buffer view.
+ * A reader can be reset to a new channel, keeping its buffer.
+ * A reader without channel is fed by {@link #append(ByteBuffer)}, it reports end of data
+ * when the data appended is used up.
+ *
+ * @author dongliu
+ */
+public class PatchReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    /** null if data is appended by caller. */
+    private ReadableByteChannel channel;
+
+    /** unread data is in [position, limit). */
+    private ByteBuffer buffer;
+
+    /** view of buffer returned by read(int). */
+    private ByteBuffer view;
+
+    /** bytes put into buffer since reset, from channel or appended. */
+    private long fetched;
+
+    /** adler32 of data read, null if not computed; data in buffer before checksummed is counted. */
+    private Adler32 checksum;
+    private int checksummed;
+
+    /**
+     * Constructs a reader without channel, data is appended by caller.
+     */
+    public PatchReader() {
+        this.buffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        this.buffer.flip();
+        this.view = buffer.duplicate();
+    }
+
+    public PatchReader(InputStream is) {
+        this(Channels.newChannel(is));
+    }
+
+    public PatchReader(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public PatchReader(ReadableByteChannel channel, int bufferSize) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferSize);
+        this.buffer.flip();
+        this.view = buffer.duplicate();
+    }
+
+    /**
+     * read from a new channel, buffered data of the old channel is discarded.
+     */
+    public void reset(ReadableByteChannel channel) {
+        if (channel == null) {
+            throw new NullPointerException();
+        }
+        this.channel = channel;
+        this.buffer.clear();
+        this.buffer.flip();
+        this.fetched = 0;
+        this.checksum = null;
+    }
+
+    /**
+     * drop reference to current channel and buffered data, the buffer is kept for next reset.
+     */
+    public void detach() {
+        this.channel = null;
+        this.buffer.clear();
+        this.buffer.flip();
+        this.fetched = 0;
+        this.checksum = null;
+    }
+
+    /**
+     * compute adler32 of data read from current position on, until reset. does nothing if started.
+     * a file channel is read instead of positioned when skipping.
+     */
+    public void startChecksum() {
+        if (checksum == null) {
+            checksum = new Adler32();
+            checksummed = buffer.position();
+        }
+    }
+
+    /**
+     * adler32 of data read since checksum started, unsigned. 0 if not started.
+     */
+    public long checksum() {
+        if (checksum == null) {
+            return 0;
+        }
+        updateChecksum();
+        return checksum.getValue();
+    }
+
+    /**
+     * count data read from buffer in checksum, before it is dropped from buffer.
+     */
+    private void updateChecksum() {
+        if (checksum != null) {
+            checksum.update(buffer.array(), buffer.arrayOffset() + checksummed, buffer.position() - checksummed);
+            checksummed = buffer.position();
+        }
+    }
+
+    /**
+     * read one byte.
+     * @return the byte, or -1 if reach the end of patch.
+     * @throws IOException
+     */
+    public int read() throws IOException {
+        if (!fill(1)) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    /**
+     * read one byte, throw exception when reach the end of patch.
+     * @throws IOException
+     */
+    public int readByte() throws IOException {
+        int b = read();
+        if (b == -1) {
+            throw new IndexOutOfBoundsException("Not enough data in patch.");
+        }
+        return b;
+    }
+
+    /**
+     * read 7 bit enconded int.by bigendian.
+     * @throws IOException
+     */
+    public int read7bitIntBE() throws IOException {
+        // a 7 bit encoded int takes five bytes at most.
+        fill(5);
+        return IOUtils.read7bitIntBE(buffer);
+    }
+
+    /**
+     * read 7 bit enconded long.by bigendian.
+     * @throws IOException
+     */
+    public long read7bitLongBE() throws IOException {
+        // a 7 bit encoded long takes ten bytes at most.
+        fill(10);
+        return IOUtils.read7bitLongBE(buffer);
+    }
+
+    /**
+     * read N bytes, throw exception when not enough data.
+     * @throws IOException
+     */
+    public byte[] readBytes(int size) throws IOException {
+        byte[] data = new byte[size];
+        read(size).get(data);
+        return data;
+    }
+
+    /**
+     * append data to the end of buffered data, for reader without channel.
+     * data is consumed.
+     */
+    public void append(ByteBuffer data) {
+        fetched += data.remaining();
+        prepareWrite(buffer.remaining() + data.remaining());
+        buffer.put(data);
+        buffer.flip();
+    }
+
+    /**
+     * bytes read since the reader is reset, i.e. position in patch.
+     */
+    public long position() {
+        return fetched - buffer.remaining();
+    }
+
+    /**
+     * bytes left in patch, including data buffered, if the patch is a file. -1 if not known.
+     * @throws IOException
+     */
+    public long remaining() throws IOException {
+        if (channel instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) channel;
+            return fileChannel.size() - fileChannel.position() + buffer.remaining();
+        }
+        return -1;
+    }
+
+    /**
+     * read the next target.remaining() bytes into target, data not buffered is read from channel
+     * straight into target.
+     * @throws IOException
+     */
+    public void readFully(ByteBuffer target) throws IOException {
+        int length = target.remaining();
+        int buffered = Math.min(length, buffer.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + buffered);
+        target.put(buffer);
+        buffer.limit(limit);
+        updateChecksum();
+        int start = target.position();
+        while (target.hasRemaining()) {
+            int size = channel == null ? -1 : channel.read(target);
+            if (size < 0) {
+                throw new IndexOutOfBoundsException("Not enough data in patch, require:" + length);
+            }
+            fetched += size;
+        }
+        if (checksum != null) {
+            // data read straight into target.
+            ByteBuffer data = target.duplicate();
+            data.flip();
+            data.position(start);
+            if (data.hasArray()) {
+                checksum.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] chunk = new byte[Math.min(data.remaining(), DEFAULT_BUFFER_SIZE)];
+                while (data.hasRemaining()) {
+                    int size = Math.min(chunk.length, data.remaining());
+                    data.get(chunk, 0, size);
+                    checksum.update(chunk, 0, size);
+                }
+            }
+        }
+    }
+
+    /**
+     * skip the next length bytes. a file channel is positioned past them without reading, unless
+     * checksum is computed.
+     * @throws IOException
+     */
+    public void skip(long length) throws IOException {
+        int buffered = (int) Math.min(length, buffer.remaining());
+        buffer.position(buffer.position() + buffered);
+        length -= buffered;
+        if (length > 0 && channel instanceof FileChannel && checksum == null) {
+            FileChannel fileChannel = (FileChannel) channel;
+            long pos = fileChannel.position() + length;
+            if (pos > fileChannel.size()) {
+                throw new IndexOutOfBoundsException("Not enough data in patch, require:" + length);
+            }
+            fileChannel.position(pos);
+            fetched += length;
+            return;
+        }
+        while (length > 0) {
+            int size = (int) Math.min(length, buffer.capacity());
+            read(size);
+            length -= size;
+        }
+    }
+
+    /**
+     * count of bytes buffered and not read yet.
+     */
+    public int available() {
+        return buffer.remaining();
+    }
+
+    /**
+     * get the data buffered and not read yet, without consuming it.
+     * the same view object as read(int) is reused, so it is only valid until next read.
+     */
+    public ByteBuffer buffered() {
+        view.clear();
+        view.position(buffer.position());
+        view.limit(buffer.limit());
+        return view;
+    }
+
+    /**
+     * read the next length bytes in one bulk read.
+     * the returned buffer is a view of the internal buffer with data in [position, limit).
+     * the same view object is reused, so it is only valid until next read.
+     * @throws IOException
+     */
+    public ByteBuffer read(int length) throws IOException {
+        if (!fill(length)) {
+            throw new IndexOutOfBoundsException("Not enough data in patch, require:" + length);
+        }
+        view.clear();
+        view.position(buffer.position());
+        view.limit(buffer.position() + length);
+        buffer.position(buffer.position() + length);
+        return view;
+    }
+
+    /**
+     * make sure at least length bytes is buffered, grow the buffer if needed.
+     * @return false if reach the end of patch before get enough data.
+     */
+    private boolean fill(int length) throws IOException {
+        if (buffer.remaining() >= length) {
+            return true;
+        }
+        if (channel == null) {
+            // all data appended is in buffer.
+            return false;
+        }
+        // the buffer grows as data arrives, so a bogus length does not allocate more than the data.
+        prepareWrite(Math.min(length, buffer.capacity()));
+        while (buffer.position() < length) {
+            if (!buffer.hasRemaining()) {
+                buffer.flip();
+                prepareWrite(Math.min(length, buffer.capacity() * 2));
+            }
+            int size = channel.read(buffer);
+            if (size < 0) {
+                break;
+            }
+            fetched += size;
+        }
+        buffer.flip();
+        return buffer.remaining() >= length;
+    }
+
+    /**
+     * move unread data to the start of buffer, and switch buffer to write mode.
+     * the buffer grows if it cannot hold length bytes.
+     */
+    private void prepareWrite(int length) {
+        updateChecksum();
+        checksummed = 0;
+        if (buffer.capacity() < length) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(length, (int) Math.min(Integer.MAX_VALUE,
+                    buffer.capacity() * 2L)));
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+            view = buffer.duplicate();
+        } else {
+            buffer.compact();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
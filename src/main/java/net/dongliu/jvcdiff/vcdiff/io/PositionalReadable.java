@@ -0,0 +1,19 @@
+package net.dongliu.jvcdiff.vcdiff.io;
+
+import java.io.IOException;
+
+/**
+ * A source stream which reads data at a position without seeking, e.g. by positional reads of
+ * a file channel, so readers of different threads can share it without locking.
+ *
+ * @author dongliu
+ */
+public interface PositionalReadable {
+
+    /**
+     * read up to length bytes at pos, the current pos of stream is not changed.
+     * safe to call from multiple threads.
+     * @return bytes read, -1 if pos is at the end of stream.
+     */
+    int read(long pos, byte[] data, int offset, int length) throws IOException;
+}
@@ -14,14 +14,14 @@ public interface SeekableStream extends Closeable {
     /**
      * Sets the position for the next {@link #read(ByteBuffer)}.
      */
-    void seek(int pos) throws IOException ;
+    void seek(long pos) throws IOException ;
     
     /**
      * get current pos.
      * @return
      * @throws IOException
      */
-    int pos() throws IOException;
+    long pos() throws IOException;
     
     int read(byte[] data, int offset, int length) throws IOException;
 
@@ -29,7 +29,7 @@ public interface SeekableStream extends Closeable {
 
     void write(byte b) throws IOException;
     
-    int length() throws IOException;
+    long length() throws IOException;
     
     /**
      * get a readonly view from origin stream.
@@ -12,14 +12,14 @@ import java.io.IOException;
 public class SlicedSeekableStream implements SeekableStream {
     
     private SeekableStream ss;
-    private int sOffset;
-    private int slength;
+    private long sOffset;
+    private long slength;
     
     /**
      * Constructs a new RandomAccessFileSeekableSource.
      * @param raf
      */
-    public SlicedSeekableStream(SeekableStream ss, int offset, int length) {
+    public SlicedSeekableStream(SeekableStream ss, long offset, long length) {
         if (ss == null) {
             throw new NullPointerException();
         }
@@ -28,11 +28,11 @@ public class SlicedSeekableStream implements SeekableStream {
         this.slength = length;
     }
 
-    public void seek(int pos) throws IOException {
+    public void seek(long pos) throws IOException {
         ss.seek(sOffset + pos);
     }
     
-    public int pos() throws IOException{
+    public long pos() throws IOException{
         return ss.pos() - sOffset;
     }
 
@@ -42,7 +42,7 @@ public class SlicedSeekableStream implements SeekableStream {
     }
 
     @Override
-    public int length() throws IOException {
+    public long length() throws IOException {
         return this.slength;
     }
 
@@ -78,8 +78,7 @@ public class SlicedSeekableStream implements SeekableStream {
 
     @Override
     public SeekableStream slice(int length) throws IOException {
-        seek(pos() + length);
-        return new SlicedSeekableStream(this, ss.pos(), length);
+        return ss.slice(length);
     }
     
 }
@@ -0,0 +1,89 @@
+package net.dongliu.jvcdiff.vcdiff.secondary;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Secondary compression with raw deflate of the JDK.
+ * Thread safe, each call uses its own deflater or inflater.
+ *
+ * @author dongliu
+ */
+public class DeflateCodec implements SecondaryCompressor, SecondaryDecompressor {
+
+    private final int level;
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level deflate level, 0-9.
+     */
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return SecondaryCompressors.DEFLATE_ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] data, int offset, int length) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int size = deflater.deflate(buffer);
+                out.write(buffer, 0, size);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public void decompress(ByteBuffer input, byte[] output, int length) throws PatchException {
+        byte[] data;
+        int offset;
+        int size = input.remaining();
+        if (input.hasArray()) {
+            data = input.array();
+            offset = input.arrayOffset() + input.position();
+        } else {
+            data = new byte[size];
+            input.duplicate().get(data);
+            offset = 0;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, offset, size);
+            int decompressed = 0;
+            while (decompressed < length) {
+                int read = inflater.inflate(output, decompressed, length - decompressed);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                decompressed += read;
+            }
+            if (decompressed != length) {
+                throw new PatchException("Compressed section is shorter than " + length + " bytes.");
+            }
+        } catch (DataFormatException e) {
+            throw new PatchException("Invalid deflate data in section: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        input.position(input.limit());
+    }
+}
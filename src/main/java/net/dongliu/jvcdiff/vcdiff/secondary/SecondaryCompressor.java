@@ -0,0 +1,21 @@
+package net.dongliu.jvcdiff.vcdiff.secondary;
+
+/**
+ * Compresses delta sections of windows when encoding.
+ * Implementations are shared by encoding threads, and should be thread safe.
+ *
+ * @author dongliu
+ */
+public interface SecondaryCompressor {
+
+    /**
+     * compressor id written to patch header, the decoder finds the decompressor by it.
+     */
+    int getId();
+
+    /**
+     * compress data[offset, offset + length).
+     * @return the compressed data.
+     */
+    byte[] compress(byte[] data, int offset, int length);
+}
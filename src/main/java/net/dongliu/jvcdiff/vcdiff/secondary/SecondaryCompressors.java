@@ -0,0 +1,50 @@
+package net.dongliu.jvcdiff.vcdiff.secondary;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of secondary decompressors by compressor id in patch header.
+ * Deflate is built in; xdelta3 DJW, LZMA and FGK patches can be applied after a decompressor
+ * is registered with their id.
+ * Thread safe.
+ *
+ * @author dongliu
+ */
+public class SecondaryCompressors {
+
+    /** xdelta3 compressor ids. */
+    public static final int DJW_ID = 1;
+    public static final int LZMA_ID = 2;
+    public static final int FGK_ID = 16;
+
+    /** id of the built in deflate compressor, not used by xdelta3. */
+    public static final int DEFLATE_ID = 0x44;
+
+    private static final ConcurrentMap<Integer, SecondaryDecompressor> decompressors
+            = new ConcurrentHashMap<Integer, SecondaryDecompressor>();
+
+    static {
+        decompressors.put(DEFLATE_ID, new DeflateCodec());
+    }
+
+    private SecondaryCompressors() {
+    }
+
+    /**
+     * register decompressor for patches with compressor id, replacing the one registered before.
+     */
+    public static void register(int id, SecondaryDecompressor decompressor) {
+        if (id < 0 || id > 255) {
+            throw new IllegalArgumentException("Compressor id should be in [0, 255].");
+        }
+        decompressors.put(id, decompressor);
+    }
+
+    /**
+     * @return null if no decompressor registered with id.
+     */
+    public static SecondaryDecompressor getDecompressor(int id) {
+        return decompressors.get(id);
+    }
+}
@@ -0,0 +1,21 @@
+package net.dongliu.jvcdiff.vcdiff.secondary;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decompresses delta sections of windows, for patches using a secondary compressor.
+ * Implementations are shared by decoding threads, and should be thread safe.
+ *
+ * @author dongliu
+ */
+public interface SecondaryDecompressor {
+
+    /**
+     * decompress all the remaining data of input to output.
+     * @param length size of the data decompressed, recorded in patch.
+     * @throws PatchException if input is not valid compressed data of length bytes.
+     */
+    void decompress(ByteBuffer input, byte[] output, int length) throws PatchException;
+}
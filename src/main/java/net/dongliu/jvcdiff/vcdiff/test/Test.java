@@ -1,7 +0,0 @@
-package net.dongliu.jvcdiff.vcdiff.test;
-
-/**
- * @author dongliu
- */
-public class Test {
-}
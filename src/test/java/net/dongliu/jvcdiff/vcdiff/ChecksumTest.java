@@ -0,0 +1,89 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * adler32 checksums of windows, checked when decoding.
+ *
+ * @author dongliu
+ */
+public class ChecksumTest {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    private static byte[] encodeWithChecksum(byte[] source, byte[] target) throws Exception {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(32 * 1024);
+        encoder.setChecksum(true);
+        encoder.encode();
+        return patch.toByteArray();
+    }
+
+    private static VcdiffDecoder decoder(byte[] source, byte[] patch, byte[] target) {
+        return new VcdiffDecoder(new ByteBufferSeekableStream(source, true), new ByteArrayInputStream(patch),
+                new ByteBufferSeekableStream(target));
+    }
+
+    @Test
+    public void testVerified() throws Exception {
+        byte[] source = random(1, 200000);
+        byte[] target = mutate(source, 2);
+        byte[] patch = encodeWithChecksum(source, target);
+        byte[] decoded = new byte[target.length];
+        decoder(source, patch, decoded).decode();
+        assertArrayEquals(target, decoded);
+        decoded = new byte[target.length];
+        decoder(source, patch, decoded).decode(executor, 4);
+        assertArrayEquals(target, decoded);
+    }
+
+    @Test
+    public void testMismatch() throws Exception {
+        byte[] source = random(3, 200000);
+        byte[] target = source.clone();
+        target[1000] ^= 1;
+        byte[] patch = encodeWithChecksum(source, target);
+        // the patch is applied to another origin, windows copying the changed byte are wrong.
+        byte[] otherSource = source.clone();
+        otherSource[100000] ^= 1;
+        for (int mode = 0; mode < 3; mode++) {
+            VcdiffDecoder decoder = decoder(otherSource, patch, new byte[target.length]);
+            try {
+                if (mode == 0) {
+                    decoder.decode();
+                } else if (mode == 1) {
+                    decoder.decode(executor, 4);
+                } else {
+                    decoder.decodePipelined(executor, 3);
+                }
+                fail("checksum mismatch not found");
+            } catch (PatchException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+            }
+        }
+        // not checked when disabled.
+        byte[] decoded = new byte[target.length];
+        VcdiffDecoder decoder = decoder(otherSource, patch, decoded);
+        decoder.setVerifyChecksum(false);
+        decoder.decode();
+        assertEquals(target[1000], decoded[1000]);
+        assertEquals((byte) (target[100000] ^ 1), decoded[100000]);
+    }
+}
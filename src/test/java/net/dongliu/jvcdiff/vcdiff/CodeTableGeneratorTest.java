@@ -0,0 +1,77 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTable;
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTableGenerator;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class CodeTableGeneratorTest {
+
+    @Test
+    public void testDefaultWithoutRecords() throws Exception {
+        CodeTableGenerator generator = new CodeTableGenerator();
+        generator.generate();
+        assertSame(CodeTable.Default, generator.getCodeTable());
+        assertEquals(4, generator.getNearSize());
+        assertEquals(3, generator.getSameSize());
+    }
+
+    @Test
+    public void testSkewedInstructions() throws Exception {
+        // the same sizes over and over, which the default table has no opcodes for.
+        CodeTableGenerator generator = new CodeTableGenerator();
+        generator.addPatch();
+        generator.addWindow();
+        int here = 0;
+        for (int i = 0; i < 20000; i++) {
+            generator.add(CodeTable.TYPE_ADD, 27, 0, here);
+            here += 27;
+            generator.add(CodeTable.TYPE_COPY, 45, Math.max(0, here - 1000), here);
+            here += 45;
+        }
+        generator.generate();
+        CodeTable table = generator.getCodeTable();
+        assertNotSame(CodeTable.Default, table);
+        assertTrue(table.findOpcode(CodeTable.TYPE_ADD, 27, 0) >= 0);
+    }
+
+    @Test
+    public void testGeneratedTableShrinksPatches() throws Exception {
+        byte[][] sources = new byte[4][];
+        byte[][] targets = new byte[4][];
+        CodeTableGenerator generator = new CodeTableGenerator();
+        int defaultSize = 0;
+        for (int i = 0; i < sources.length; i++) {
+            // a byte changed every 100 bytes: pairs of a one byte ADD and a COPY of 99 bytes.
+            sources[i] = random(i, 200000);
+            targets[i] = sources[i].clone();
+            for (int pos = 50; pos < targets[i].length; pos += 100) {
+                targets[i][pos] ^= 1;
+            }
+            ByteArrayOutputStream patch = new ByteArrayOutputStream();
+            VcdiffEncoder encoder = newEncoder(sources[i], targets[i], patch);
+            encoder.setProfile(generator);
+            encoder.encode();
+            defaultSize += patch.size();
+        }
+        generator.generate();
+        assertNotSame(CodeTable.Default, generator.getCodeTable());
+        int generatedSize = 0;
+        for (int i = 0; i < sources.length; i++) {
+            ByteArrayOutputStream patch = new ByteArrayOutputStream();
+            VcdiffEncoder encoder = newEncoder(sources[i], targets[i], patch);
+            encoder.setCodeTable(generator.getCodeTable(), generator.getNearSize(), generator.getSameSize());
+            encoder.encode();
+            generatedSize += patch.size();
+            assertArrayEquals(targets[i], decode(sources[i], patch.toByteArray()));
+        }
+        assertTrue(generatedSize < defaultSize);
+    }
+}
@@ -0,0 +1,85 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * encoding without source, windows copy from themselves and from target data before them.
+ *
+ * @author dongliu
+ */
+public class CompressTest {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    private static byte[] compress(byte[] target) throws Exception {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder.compress(new ByteArrayInputStream(target), patch);
+        return patch.toByteArray();
+    }
+
+    @Test
+    public void testCompress() throws Exception {
+        byte[] target = text(1, 3 << 20);
+        byte[] patch = compress(target);
+        assertTrue(patch.length < target.length / 4);
+        for (WindowInfo window : patchInfo(patch).getWindows()) {
+            assertFalse(window.isSourceFromOrigin());
+        }
+        assertArrayEquals(target, decode(null, patch));
+    }
+
+    @Test
+    public void testDecodeToOutputStream() throws Exception {
+        byte[] target = text(2, 5 << 20);
+        byte[] patch = compress(target);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VcdiffDecoder.decode(null, new ByteArrayInputStream(patch), out);
+        assertArrayEquals(target, out.toByteArray());
+    }
+
+    @Test
+    public void testConcurrentDecode() throws Exception {
+        // windows of target source wait for the windows before them.
+        byte[] block = random(3, 100000);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 30; i++) {
+            data.write(block, 0, block.length);
+            data.write(random(4 + i, 5000), 0, 5000);
+        }
+        byte[] target = data.toByteArray();
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(null, target, patch);
+        encoder.setWindowSize(256 * 1024);
+        encoder.encode();
+        assertTrue(patch.size() < target.length / 10);
+        boolean targetSourced = false;
+        for (WindowInfo window : patchInfo(patch.toByteArray()).getWindows()) {
+            targetSourced |= window.isSourceFromTarget();
+        }
+        assertTrue(targetSourced);
+
+        byte[] parallel = new byte[target.length];
+        new VcdiffDecoder(null, new ByteArrayInputStream(patch.toByteArray()),
+                new ByteBufferSeekableStream(parallel)).decode(executor, 4);
+        assertArrayEquals(target, parallel);
+        byte[] pipelined = new byte[target.length];
+        new VcdiffDecoder(null, new ByteArrayInputStream(patch.toByteArray()),
+                new ByteBufferSeekableStream(pipelined)).decodePipelined(executor, 3);
+        assertArrayEquals(target, pipelined);
+    }
+}
@@ -0,0 +1,46 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * decoders reset for other patches keep their buffers.
+ *
+ * @author dongliu
+ */
+public class DecoderReuseTest {
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void testNoWindowBuffers() throws Exception {
+        byte[] source = random(1, 1 << 20);
+        byte[] target = mutate(source, 2);
+        byte[] patch = encode(source, target, 16 * 1024);
+        int windows = patchInfo(patch).getWindows().size();
+        assertTrue(windows > 50);
+
+        VcdiffDecoder decoder = new VcdiffDecoder();
+        byte[] decoded = new byte[target.length];
+        long allocated = 0;
+        for (int i = 0; i < 3; i++) {
+            long start = allocatedBytes();
+            decoder.reset(new ByteBufferSeekableStream(source, true), new ByteArrayInputStream(patch),
+                    new ByteBufferSeekableStream(decoded));
+            decoder.decode();
+            allocated = allocatedBytes() - start;
+            assertArrayEquals(target, decoded);
+        }
+        // once buffers are grown, windows allocate only small objects such as source views.
+        assertTrue(allocated < 32 * 1024 + windows * 512L);
+    }
+}
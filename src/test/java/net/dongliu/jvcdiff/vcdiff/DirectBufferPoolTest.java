@@ -0,0 +1,105 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class DirectBufferPoolTest {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * pool counting buffers out.
+     */
+    private static class CountingPool extends DirectBufferPool {
+        final AtomicInteger acquired = new AtomicInteger();
+        final AtomicInteger released = new AtomicInteger();
+
+        @Override
+        public ByteBuffer acquire(int length) {
+            acquired.incrementAndGet();
+            return super.acquire(length);
+        }
+
+        @Override
+        public void release(ByteBuffer buffer) {
+            released.incrementAndGet();
+            super.release(buffer);
+        }
+    }
+
+    @Test
+    public void testReuse() {
+        DirectBufferPool pool = new DirectBufferPool();
+        ByteBuffer buffer = pool.acquire(100000);
+        assertTrue(buffer.isDirect());
+        assertEquals(128 * 1024, buffer.capacity());
+        buffer.put((byte) 1);
+        pool.release(buffer);
+        ByteBuffer reused = pool.acquire(70000);
+        assertSame(buffer, reused);
+        assertEquals(0, reused.position());
+        assertEquals(reused.capacity(), reused.limit());
+        assertNotSame(reused, pool.acquire(70000));
+    }
+
+    @Test
+    public void testIdleBound() {
+        DirectBufferPool pool = new DirectBufferPool(256 * 1024);
+        ByteBuffer small1 = pool.acquire(64 * 1024);
+        ByteBuffer small2 = pool.acquire(64 * 1024);
+        ByteBuffer large = pool.acquire(256 * 1024);
+        pool.release(large);
+        // the large buffer is dropped to keep the smaller ones.
+        pool.release(small1);
+        pool.release(small2);
+        assertNotSame(large, pool.acquire(256 * 1024));
+        ByteBuffer got = pool.acquire(64 * 1024);
+        assertTrue(got == small1 || got == small2);
+
+        pool.release(got);
+        pool.clear();
+        assertNotSame(got, pool.acquire(64 * 1024));
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] source = random(1, 300000);
+        byte[] target = mutate(source, 2);
+        byte[] patch = encode(source, target, 32 * 1024);
+        for (int mode = 0; mode < 3; mode++) {
+            CountingPool pool = new CountingPool();
+            byte[] decoded = new byte[target.length];
+            VcdiffDecoder decoder = new VcdiffDecoder(new ByteBufferSeekableStream(source, true),
+                    new ByteArrayInputStream(patch), new ByteBufferSeekableStream(decoded));
+            decoder.setDirectBufferPool(pool);
+            if (mode == 0) {
+                decoder.decode();
+            } else if (mode == 1) {
+                decoder.decode(executor, 4);
+            } else {
+                decoder.decodePipelined(executor, 3);
+            }
+            assertArrayEquals(target, decoded);
+            assertTrue(pool.acquired.get() > 1);
+            assertEquals(pool.acquired.get(), pool.released.get());
+        }
+    }
+}
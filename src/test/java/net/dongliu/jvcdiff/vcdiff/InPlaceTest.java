@@ -0,0 +1,122 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * files patched in place, with blocks of origin moved around so windows copy from origin data
+ * that earlier windows overwrite.
+ *
+ * @author dongliu
+ */
+public class InPlaceTest {
+
+    private static final int BLOCK_SIZE = 20000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] blocks(byte[] data, int... blockNos) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int blockNo : blockNos) {
+            if (blockNo < 0) {
+                out.write(random(blockNo, BLOCK_SIZE), 0, BLOCK_SIZE);
+            } else {
+                out.write(data, blockNo * BLOCK_SIZE, BLOCK_SIZE);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * patch origin to target in place.
+     * @return scratch bytes needed.
+     */
+    private long patchInPlace(byte[] origin, byte[] target, long maxScratchBytes) throws Exception {
+        return patchInPlace(origin, encode(origin, target, 16 * 1024), target, maxScratchBytes);
+    }
+
+    private long patchInPlace(byte[] origin, byte[] patch, byte[] target, long maxScratchBytes)
+            throws Exception {
+        File patchFile = writeFile(folder.newFile(), patch);
+        File file = writeFile(folder.newFile(), origin);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long scratchBytes = new InPlaceFile(raf, patchInfo(readFile(patchFile))).getScratchBytes();
+            VcdiffDecoder.patchInPlace(raf, patchFile, maxScratchBytes);
+            assertArrayEquals(target, readFile(file));
+            return scratchBytes;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testShorterTarget() throws Exception {
+        byte[] origin = random(1, 10 * BLOCK_SIZE);
+        // blocks from the end of origin are written first, over blocks copied later.
+        byte[] target = blocks(origin, 9, 8, 7, 2, 1, 0);
+        assertTrue(patchInPlace(origin, target, Long.MAX_VALUE) > 0);
+    }
+
+    @Test
+    public void testLongerTarget() throws Exception {
+        byte[] origin = random(2, 8 * BLOCK_SIZE);
+        byte[] target = blocks(origin, 5, -1, 7, 0, 6, 1, 3, -2, 2, 4, -3, 0);
+        assertTrue(patchInPlace(origin, target, Long.MAX_VALUE) > 0);
+    }
+
+    @Test
+    public void testTargetSourced() throws Exception {
+        byte[] origin = random(3, 4 * BLOCK_SIZE);
+        // windows copy from target data written before them, read back from the file.
+        byte[] block = random(4, 20000);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            data.write(block, 0, block.length);
+            data.write(random(5 + i, 1000), 0, 1000);
+        }
+        byte[] target = data.toByteArray();
+        byte[] patch = encode(null, target, 32 * 1024);
+        boolean targetSourced = false;
+        for (WindowInfo window : patchInfo(patch).getWindows()) {
+            targetSourced |= window.isSourceFromTarget();
+        }
+        assertTrue(targetSourced);
+        assertEquals(0, patchInPlace(origin, patch, target, 0));
+    }
+
+    @Test
+    public void testScratchLimit() throws Exception {
+        byte[] origin = random(5, 10 * BLOCK_SIZE);
+        byte[] target = blocks(origin, 9, 8, 7, 6, 5, 4, 3, 2, 1, 0);
+        File patchFile = writeFile(folder.newFile(), encode(origin, target, 16 * 1024));
+        File file = writeFile(folder.newFile(), origin);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long scratchBytes = new InPlaceFile(raf, patchInfo(readFile(patchFile))).getScratchBytes();
+            assertTrue(scratchBytes >= 4 * BLOCK_SIZE);
+            try {
+                VcdiffDecoder.patchInPlace(raf, patchFile, scratchBytes - 1);
+                fail("scratch limit exceeded");
+            } catch (PatchException e) {
+                assertTrue(e.getMessage().startsWith("In-place patch needs " + scratchBytes));
+            }
+            // the file is untouched.
+            assertArrayEquals(origin, readFile(file));
+            VcdiffDecoder.patchInPlace(raf, patchFile, scratchBytes);
+            assertArrayEquals(target, readFile(file));
+        } finally {
+            raf.close();
+        }
+    }
+}
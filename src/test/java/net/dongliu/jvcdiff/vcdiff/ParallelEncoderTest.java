@@ -0,0 +1,106 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.FileSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.SeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.SlicedSeekableStream;
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * windows encoded concurrently, sharing one source stream.
+ *
+ * @author dongliu
+ */
+public class ParallelEncoderTest {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSharedSourceStreams() throws Exception {
+        byte[] source = random(1, 1 << 20);
+        byte[] target = mutate(source, 2);
+        byte[] expected = encode(source, target, 16 * 1024);
+        File sourceFile = write(source);
+
+        RandomAccessFile file = new RandomAccessFile(sourceFile, "r");
+        try {
+            // a file is read with positional reads, a sliced stream with locked seeks and reads.
+            SeekableStream[] sources = {new FileSeekableStream(file, true),
+                    new SlicedSeekableStream(new ByteBufferSeekableStream(source, true), 0, source.length)};
+            for (SeekableStream sourceStream : sources) {
+                ByteArrayOutputStream patch = new ByteArrayOutputStream();
+                VcdiffEncoder encoder = new VcdiffEncoder(sourceStream, new ByteArrayInputStream(target), patch);
+                encoder.setWindowSize(16 * 1024);
+                encoder.encode(executor, 8);
+                assertArrayEquals(expected, patch.toByteArray());
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testPositionalRead() throws Exception {
+        byte[] data = random(3, 10000);
+        RandomAccessFile file = new RandomAccessFile(write(data), "r");
+        try {
+            FileSeekableStream fileStream = new FileSeekableStream(file, true);
+            ByteBufferSeekableStream bufferStream = new ByteBufferSeekableStream(data, true);
+            fileStream.seek(100);
+            bufferStream.seek(100);
+            byte[] read = new byte[50];
+            assertEquals(50, fileStream.read(5000, read, 0, 50));
+            assertArrayEquals(Arrays.copyOfRange(data, 5000, 5050), read);
+            assertEquals(50, bufferStream.read(9950, read, 0, 100));
+            assertArrayEquals(Arrays.copyOfRange(data, 9950, 10000), read);
+            assertEquals(-1, bufferStream.read(10000, read, 0, 10));
+            // stream position is not moved.
+            assertEquals(100, fileStream.pos());
+            assertEquals(100, bufferStream.pos());
+        } finally {
+            file.close();
+        }
+    }
+
+    @Test
+    public void testDiffFiles() throws Exception {
+        byte[] source = random(4, 600000);
+        byte[] target = mutate(source, 5);
+        File targetFile = write(target);
+        File patchFile = folder.newFile();
+        RandomAccessFile sourceFile = new RandomAccessFile(write(source), "r");
+        try {
+            VcdiffEncoder.diff(sourceFile, targetFile, patchFile, executor);
+        } finally {
+            sourceFile.close();
+        }
+        byte[] patch = readFile(patchFile);
+        assertArrayEquals(target, decode(source, patch));
+    }
+
+    private File write(byte[] data) throws Exception {
+        return writeFile(folder.newFile(), data);
+    }
+}
@@ -0,0 +1,94 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import net.dongliu.jvcdiff.vcdiff.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class PatchedSeekableStreamTest {
+
+    private static PatchedSeekableStream open(byte[] source, byte[] patch) throws Exception {
+        return new PatchedSeekableStream(source == null ? null : new ByteBufferSeekableStream(source, true),
+                new ByteBufferSeekableStream(patch, true));
+    }
+
+    private static byte[] readAt(PatchedSeekableStream stream, long pos, int length) throws Exception {
+        byte[] data = new byte[length];
+        stream.seek(pos);
+        IOUtils.readFully(stream, data, 0, length);
+        return data;
+    }
+
+    @Test
+    public void testReadAcrossWindows() throws Exception {
+        byte[] source = random(1, 200000);
+        byte[] target = mutate(source, 2);
+        byte[] patch = encode(source, target, 16 * 1024);
+        PatchedSeekableStream stream = open(source, patch);
+        assertEquals(target.length, stream.length());
+        List<WindowInfo> windows = stream.getPatchInfo().getWindows();
+        assertTrue(windows.size() > 2);
+        for (int i = 1; i < windows.size(); i++) {
+            int boundary = (int) windows.get(i).targetOffset;
+            assertArrayEquals(Arrays.copyOfRange(target, boundary - 100, Math.min(target.length, boundary + 100)),
+                    readAt(stream, boundary - 100, Math.min(200, target.length - boundary + 100)));
+            stream.seek(boundary - 1);
+            assertEquals(target[boundary - 1] & 0xff, stream.read());
+            assertEquals(target[boundary] & 0xff, stream.read());
+        }
+        // the whole target in one read, spanning all windows.
+        assertArrayEquals(target, readAt(stream, 0, target.length));
+        stream.seek(target.length);
+        assertEquals(-1, stream.read());
+    }
+
+    @Test
+    public void testEvictTargetSourced() throws Exception {
+        // windows copy from target data before them, in chains.
+        byte[] block = random(3, 20000);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 20; i++) {
+            data.write(block, 0, block.length);
+            data.write(random(4 + i, 1000), 0, 1000);
+        }
+        byte[] target = data.toByteArray();
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(null, target, patch);
+        encoder.setWindowSize(32 * 1024);
+        encoder.encode();
+        int targetSourced = 0;
+        for (WindowInfo window : patchInfo(patch.toByteArray()).getWindows()) {
+            if (window.isSourceFromTarget()) {
+                targetSourced++;
+            }
+        }
+        assertTrue(targetSourced > 5);
+
+        // cache keeps one window, decoding a window decodes the chain it depends on again.
+        PatchedSeekableStream stream = open(null, patch.toByteArray());
+        stream.setCacheSize(1);
+        List<WindowInfo> windows = stream.getPatchInfo().getWindows();
+        for (int i = windows.size() - 1; i >= 0; i--) {
+            int offset = (int) windows.get(i).targetOffset;
+            int length = (int) Math.min(1000, target.length - offset);
+            assertArrayEquals(Arrays.copyOfRange(target, offset, offset + length), readAt(stream, offset, length));
+        }
+        Random random = new Random(5);
+        for (int i = 0; i < 100; i++) {
+            int offset = random.nextInt(target.length);
+            int length = Math.min(random.nextInt(50000), target.length - offset);
+            assertArrayEquals(Arrays.copyOfRange(target, offset, offset + length), readAt(stream, offset, length));
+        }
+        stream.close();
+    }
+}
@@ -0,0 +1,56 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.secondary.DeflateCodec;
+import net.dongliu.jvcdiff.vcdiff.secondary.SecondaryCompressors;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class SecondaryCompressorTest {
+
+    private static byte[] encodeDeflate(byte[] source, byte[] target) throws Exception {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(32 * 1024);
+        encoder.setSecondaryCompressor(new DeflateCodec());
+        encoder.encode();
+        return patch.toByteArray();
+    }
+
+    @Test
+    public void testDeflate() throws Exception {
+        byte[] source = text(1, 200000);
+        byte[] target = mutate(source, 2);
+        byte[] patch = encodeDeflate(source, target);
+        assertEquals(SecondaryCompressors.DEFLATE_ID, patchInfo(patch).getSecondaryCompressorId());
+        assertTrue(patch.length < encode(source, target, 32 * 1024).length);
+        assertArrayEquals(target, decode(source, patch));
+
+        // a target with no source, sections are mostly ADD data.
+        target = text(3, 100000);
+        assertArrayEquals(target, decode(new byte[0], encodeDeflate(new byte[0], target)));
+    }
+
+    @Test
+    public void testUnknownCompressor() throws Exception {
+        byte[] source = text(4, 50000);
+        byte[] target = mutate(source, 5);
+        byte[] patch = encodeDeflate(source, target);
+        // the compressor id follows magic, version and header indicator.
+        assertEquals(SecondaryCompressors.DEFLATE_ID, patch[5]);
+        patch[5] = 0x7f;
+        try {
+            decode(source, patch);
+            fail("unknown compressor accepted");
+        } catch (PatchException e) {
+            assertEquals("Unsupported secondary compressor: 127", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class SourceIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLookup() throws Exception {
+        byte[] source = random(1, 100000);
+        SourceIndex index = SourceIndex.build(new ByteBufferSeekableStream(source, true));
+        assertEquals(source.length, index.getSourceLength());
+        int found = 0;
+        for (int pos = 0; pos + SourceIndex.BLOCK_SIZE <= source.length; pos += SourceIndex.BLOCK_SIZE) {
+            long match = index.lookup(SourceIndex.hash(source, pos));
+            if (match >= 0) {
+                assertEquals(SourceIndex.hash(source, pos), SourceIndex.hash(source, (int) match));
+                found++;
+            }
+        }
+        // blocks colliding in a slot are dropped, most are kept.
+        assertTrue(found > source.length / SourceIndex.BLOCK_SIZE / 2);
+    }
+
+    @Test
+    public void testRoll() {
+        byte[] data = random(2, 100);
+        int hash = SourceIndex.hash(data, 0);
+        for (int i = 1; i + SourceIndex.BLOCK_SIZE <= data.length; i++) {
+            hash = SourceIndex.roll(hash, data[i - 1], data[i + SourceIndex.BLOCK_SIZE - 1]);
+            assertEquals(SourceIndex.hash(data, i), hash);
+        }
+    }
+
+    @Test
+    public void testSaveLoad() throws Exception {
+        byte[] source = random(3, 200000);
+        ByteBufferSeekableStream sourceStream = new ByteBufferSeekableStream(source, true);
+        SourceIndex built = SourceIndex.build(sourceStream);
+        File indexFile = new File(folder.getRoot(), "source.idx");
+        built.save(indexFile, sourceStream);
+        SourceIndex loaded = SourceIndex.load(indexFile, sourceStream);
+        assertEquals(built.getSourceLength(), loaded.getSourceLength());
+        for (int pos = 0; pos + SourceIndex.BLOCK_SIZE <= source.length; pos += 7) {
+            int hash = SourceIndex.hash(source, pos);
+            assertEquals(built.lookup(hash), loaded.lookup(hash));
+        }
+
+        // patches encoded with the loaded index are the same.
+        byte[] target = mutate(source, 4);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(32 * 1024);
+        encoder.setSourceIndex(loaded);
+        encoder.encode();
+        assertArrayEquals(encode(source, target, 32 * 1024), patch.toByteArray());
+        assertArrayEquals(target, decode(source, patch.toByteArray()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLoadOtherSource() throws Exception {
+        byte[] source = random(5, 50000);
+        File indexFile = new File(folder.getRoot(), "source.idx");
+        ByteBufferSeekableStream sourceStream = new ByteBufferSeekableStream(source, true);
+        SourceIndex.build(sourceStream).save(indexFile, sourceStream);
+        SourceIndex.load(indexFile, new ByteBufferSeekableStream(random(6, 40000), true));
+    }
+
+    @Test
+    public void testLoadChangedSource() throws Exception {
+        byte[] source = random(8, 3 << 20);
+        File indexFile = new File(folder.getRoot(), "source.idx");
+        SourceIndex.build(new ByteBufferSeekableStream(source, true))
+                .save(indexFile, new ByteBufferSeekableStream(source, true));
+        // one byte changed, not on a sampled position.
+        byte[] changed = source.clone();
+        changed[changed.length / 2 + 12345] ^= 1;
+        try {
+            SourceIndex.load(indexFile, new ByteBufferSeekableStream(changed, true));
+            fail("index of changed source loaded");
+        } catch (IOException expected) {
+        }
+        // rebuilt for the changed source.
+        SourceIndex.loadOrBuild(indexFile, new ByteBufferSeekableStream(changed, true));
+        SourceIndex.load(indexFile, new ByteBufferSeekableStream(changed, true));
+    }
+
+    @Test
+    public void testLoadOrBuild() throws Exception {
+        byte[] source = random(7, 50000);
+        File indexFile = new File(folder.getRoot(), "source.idx");
+        ByteBufferSeekableStream sourceStream = new ByteBufferSeekableStream(source, true);
+        assertFalse(indexFile.exists());
+        SourceIndex.loadOrBuild(indexFile, sourceStream);
+        assertTrue(indexFile.exists());
+        // a broken file is rebuilt.
+        RandomAccessFile file = new RandomAccessFile(indexFile, "rw");
+        file.setLength(10);
+        file.close();
+        SourceIndex index = SourceIndex.loadOrBuild(indexFile, sourceStream);
+        assertEquals(source.length, index.getSourceLength());
+        assertEquals(source.length, SourceIndex.load(indexFile, sourceStream).getSourceLength());
+    }
+}
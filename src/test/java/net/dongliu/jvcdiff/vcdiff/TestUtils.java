@@ -0,0 +1,138 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * data and shortcuts shared by tests.
+ *
+ * @author dongliu
+ */
+class TestUtils {
+
+    /**
+     * random bytes.
+     */
+    static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * text like data: words from a small vocabulary, compresses well without source.
+     */
+    static byte[] text(long seed, int length) {
+        Random random = new Random(seed);
+        String[] words = {"vcdiff ", "window ", "source ", "target ", "copy ", "add ", "run ", "the ",
+                "of ", "delta ", "encoding ", "\n"};
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        while (out.size() < length) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            out.write(word, 0, Math.min(word.length, length - out.size()));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * a new version of data: some bytes changed, ranges inserted and deleted, blocks moved.
+     */
+    static byte[] mutate(byte[] data, long seed) {
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length + data.length / 8);
+        int pos = 0;
+        while (pos < data.length) {
+            int length = Math.min(data.length - pos, 1 + random.nextInt(20000));
+            switch (random.nextInt(4)) {
+                case 0:
+                    // changed bytes
+                    byte[] changed = new byte[length];
+                    System.arraycopy(data, pos, changed, 0, length);
+                    for (int i = 0; i < length; i += 1 + random.nextInt(500)) {
+                        changed[i] ^= 1 + random.nextInt(255);
+                    }
+                    out.write(changed, 0, length);
+                    break;
+                case 1:
+                    // inserted
+                    out.write(data, pos, length);
+                    byte[] inserted = random(random.nextLong(), random.nextInt(3000));
+                    out.write(inserted, 0, inserted.length);
+                    break;
+                case 2:
+                    // deleted
+                    break;
+                default:
+                    // moved from elsewhere
+                    int from = random.nextInt(data.length);
+                    out.write(data, from, Math.min(length, data.length - from));
+                    break;
+            }
+            pos += length;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * encode target against source, null for no source.
+     */
+    static byte[] encode(byte[] source, byte[] target, int windowSize) throws IOException {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(windowSize);
+        encoder.encode();
+        return patch.toByteArray();
+    }
+
+    static VcdiffEncoder newEncoder(byte[] source, byte[] target, ByteArrayOutputStream patch) {
+        return new VcdiffEncoder(source == null ? null : new ByteBufferSeekableStream(source, true),
+                new ByteArrayInputStream(target), patch);
+    }
+
+    /**
+     * decode patch against source, null for no source.
+     */
+    static byte[] decode(byte[] source, byte[] patch) throws IOException, PatchException {
+        byte[] target = new byte[(int) targetLength(patch)];
+        VcdiffDecoder.decode(source == null ? null : new ByteBufferSeekableStream(source, true),
+                new ByteArrayInputStream(patch), new ByteBufferSeekableStream(target));
+        return target;
+    }
+
+    static long targetLength(byte[] patch) throws IOException, PatchException {
+        return patchInfo(patch).getTargetLength();
+    }
+
+    static PatchInfo patchInfo(byte[] patch) throws IOException, PatchException {
+        return PatchInfo.read(new ByteBufferSeekableStream(patch, true));
+    }
+
+    static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    static File writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
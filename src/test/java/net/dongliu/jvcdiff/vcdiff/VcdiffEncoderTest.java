@@ -0,0 +1,197 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.codetable.CodeTableGenerator;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class VcdiffEncoderTest {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRoundTripWithSource() throws Exception {
+        byte[] source = random(1, 300000);
+        byte[] target = mutate(source, 2);
+        byte[] patch = encode(source, target, 64 * 1024);
+        assertArrayEquals(target, decode(source, patch));
+        assertTrue(patch.length < target.length / 2);
+    }
+
+    @Test
+    public void testRoundTripWithoutSource() throws Exception {
+        byte[] target = text(3, 200000);
+        byte[] patch = encode(null, target, 64 * 1024);
+        assertArrayEquals(target, decode(null, patch));
+        assertTrue(patch.length < target.length / 2);
+    }
+
+    @Test
+    public void testEmptyTarget() throws Exception {
+        byte[] patch = encode(random(4, 1000), new byte[0], 1024);
+        assertEquals(0, targetLength(patch));
+        assertEquals(0, decode(random(4, 1000), patch).length);
+    }
+
+    @Test
+    public void testShortTargets() throws Exception {
+        byte[] source = random(5, 100);
+        for (int length = 1; length < 40; length++) {
+            byte[] target = Arrays.copyOfRange(source, 50, 50 + length);
+            assertArrayEquals(target, decode(source, encode(source, target, 1024)));
+            assertArrayEquals(target, decode(null, encode(null, target, 1024)));
+        }
+    }
+
+    @Test
+    public void testRun() throws Exception {
+        byte[] target = new byte[100000];
+        Arrays.fill(target, (byte) 7);
+        byte[] patch = encode(null, target, 1 << 20);
+        assertArrayEquals(target, decode(null, patch));
+        assertTrue(patch.length < 100);
+    }
+
+    @Test
+    public void testAddOnly() throws Exception {
+        byte[] target = random(6, 50000);
+        byte[] patch = encode(null, target, 16 * 1024);
+        assertArrayEquals(target, decode(null, patch));
+        assertTrue(patch.length >= target.length);
+    }
+
+    @Test
+    public void testOverlappedCopy() throws Exception {
+        // a short period repeats, copies overlap the data they produce.
+        byte[] target = new byte[65536];
+        byte[] unit = random(7, 3);
+        for (int i = 0; i < target.length; i++) {
+            target[i] = unit[i % unit.length];
+        }
+        byte[] patch = encode(null, target, 1 << 20);
+        assertArrayEquals(target, decode(null, patch));
+        assertTrue(patch.length < 100);
+    }
+
+    @Test
+    public void testCopyAtSourceEdges() throws Exception {
+        byte[] source = random(8, 100000);
+        assertArrayEquals(source, decode(source, encode(source, source, 32 * 1024)));
+        // the tail of source followed by new data, and the head of source at the end.
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(source, source.length - 5000, 5000);
+        out.write(random(9, 100), 0, 100);
+        out.write(source, 0, 5000);
+        byte[] target = out.toByteArray();
+        byte[] patch = encode(source, target, 4096);
+        assertArrayEquals(target, decode(source, patch));
+        assertTrue(patch.length < 1000);
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        byte[] source = random(10, 100000);
+        byte[] target = mutate(source, 11);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(16 * 1024);
+        encoder.setChecksum(true);
+        encoder.encode();
+        PatchInfo patchInfo = patchInfo(patch.toByteArray());
+        for (WindowInfo window : patchInfo.getWindows()) {
+            assertTrue(window.hasChecksum);
+        }
+        assertArrayEquals(target, decode(source, patch.toByteArray()));
+    }
+
+    @Test
+    public void testParallelSameAsSequential() throws Exception {
+        byte[] source = random(12, 500000);
+        byte[][][] cases = {{source, mutate(source, 13)}, {null, text(14, 500000)}};
+        for (byte[][] sourceAndTarget : cases) {
+            byte[] sequential = encode(sourceAndTarget[0], sourceAndTarget[1], 32 * 1024);
+            ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+            VcdiffEncoder encoder = newEncoder(sourceAndTarget[0], sourceAndTarget[1], parallel);
+            encoder.setWindowSize(32 * 1024);
+            encoder.encode(executor, 6);
+            assertArrayEquals(sequential, parallel.toByteArray());
+            assertArrayEquals(sourceAndTarget[1], decode(sourceAndTarget[0], sequential));
+        }
+    }
+
+    @Test
+    public void testTargetDictionary() throws Exception {
+        // a block repeated in later windows, only found in target data before the window.
+        byte[] block = random(15, 20000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            out.write(block, 0, block.length);
+            out.write(random(16 + i, 1000), 0, 1000);
+        }
+        byte[] target = out.toByteArray();
+
+        byte[] withDictionary = encode(null, target, 32 * 1024);
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(null, target, patch);
+        encoder.setWindowSize(32 * 1024);
+        encoder.setTargetDictionary(false);
+        encoder.encode();
+        byte[] withoutDictionary = patch.toByteArray();
+
+        assertArrayEquals(target, decode(null, withDictionary));
+        assertArrayEquals(target, decode(null, withoutDictionary));
+        assertTrue(withDictionary.length < withoutDictionary.length / 2);
+        boolean targetSourced = false;
+        for (WindowInfo window : patchInfo(withDictionary).getWindows()) {
+            targetSourced |= window.indicator == DeltaWindow.VCD_TARGET;
+        }
+        assertTrue(targetSourced);
+        for (WindowInfo window : patchInfo(withoutDictionary).getWindows()) {
+            assertFalse(window.indicator == DeltaWindow.VCD_TARGET);
+        }
+    }
+
+    @Test
+    public void testCustomCodeTable() throws Exception {
+        byte[] source = random(30, 200000);
+        byte[] target = mutate(source, 31);
+        CodeTableGenerator generator = new CodeTableGenerator();
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(8 * 1024);
+        encoder.setProfile(generator);
+        encoder.encode();
+        generator.generate();
+
+        patch.reset();
+        encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(8 * 1024);
+        // a table not generated from the patch is valid as well.
+        encoder.setCodeTable(generator.getCodeTable(), 2, 1);
+        encoder.encode();
+        assertTrue(patchInfo(patch.toByteArray()).hasCustomCodeTable());
+        assertArrayEquals(target, decode(source, patch.toByteArray()));
+
+        patch.reset();
+        encoder = newEncoder(source, target, patch);
+        encoder.setWindowSize(8 * 1024);
+        encoder.setCodeTable(generator.getCodeTable(), generator.getNearSize(), generator.getSameSize());
+        encoder.encode();
+        assertArrayEquals(target, decode(source, patch.toByteArray()));
+    }
+}
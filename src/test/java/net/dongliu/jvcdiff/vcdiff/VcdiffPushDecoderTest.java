@@ -0,0 +1,82 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class VcdiffPushDecoderTest {
+
+    private static byte[] push(byte[] source, byte[] patch, int targetLength, Random random, int maxChunk)
+            throws Exception {
+        byte[] target = new byte[targetLength];
+        VcdiffPushDecoder decoder = new VcdiffPushDecoder(new ByteBufferSeekableStream(source, true),
+                new ByteBufferSeekableStream(target));
+        for (int pos = 0; pos < patch.length; ) {
+            int length = Math.min(patch.length - pos, 1 + random.nextInt(maxChunk));
+            decoder.feed(ByteBuffer.wrap(patch, pos, length));
+            pos += length;
+        }
+        decoder.finish();
+        return target;
+    }
+
+    @Test
+    public void testOneByteChunks() throws Exception {
+        byte[] source = random(1, 50000);
+        byte[] target = mutate(source, 2);
+        byte[] patch = encode(source, target, 8 * 1024);
+        assertArrayEquals(target, push(source, patch, target.length, new Random(3), 1));
+    }
+
+    @Test
+    public void testRandomChunks() throws Exception {
+        byte[] source = random(4, 300000);
+        byte[] target = mutate(source, 5);
+        byte[] patch = encode(source, target, 32 * 1024);
+        for (int seed = 0; seed < 10; seed++) {
+            assertArrayEquals(target, push(source, patch, target.length, new Random(seed), 20000));
+        }
+    }
+
+    @Test
+    public void testIncomplete() throws Exception {
+        byte[] source = random(6, 100000);
+        byte[] target = mutate(source, 7);
+        byte[] patch = encode(source, target, 32 * 1024);
+        try {
+            push(source, Arrays.copyOf(patch, patch.length - 1), target.length, new Random(8), 1000);
+            fail("incomplete patch decoded");
+        } catch (PatchException e) {
+            assertEquals("Patch data is incomplete.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testMaxBufferedBytes() throws Exception {
+        byte[] source = random(9, 1000);
+        byte[] target = random(10, 100000);
+        // windows are mostly ADD data, larger than the buffer limit.
+        byte[] patch = encode(source, target, 32 * 1024);
+        VcdiffPushDecoder decoder = new VcdiffPushDecoder(new ByteBufferSeekableStream(source, true),
+                new ByteBufferSeekableStream(new byte[target.length]));
+        decoder.setMaxBufferedBytes(16 * 1024);
+        try {
+            for (int pos = 0; pos < patch.length; pos += 1000) {
+                decoder.feed(ByteBuffer.wrap(patch, pos, Math.min(1000, patch.length - pos)));
+            }
+            fail("buffered data not bounded");
+        } catch (PatchException e) {
+            assertTrue(e.getMessage().startsWith("Patch data buffered exceeds"));
+        }
+    }
+}
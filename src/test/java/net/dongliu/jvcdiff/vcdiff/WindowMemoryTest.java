@@ -0,0 +1,188 @@
+package net.dongliu.jvcdiff.vcdiff;
+
+import net.dongliu.jvcdiff.vcdiff.exception.PatchException;
+import net.dongliu.jvcdiff.vcdiff.io.ByteBufferSeekableStream;
+import org.junit.AfterClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static net.dongliu.jvcdiff.vcdiff.TestUtils.*;
+import static org.junit.Assert.*;
+
+/**
+ * windows larger than the memory budget, decoded in scratch file.
+ *
+ * @author dongliu
+ */
+public class WindowMemoryTest {
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @AfterClass
+    public static void shutdown() {
+        executor.shutdown();
+    }
+
+    private static void write7bitInt(ByteArrayOutputStream out, int value) {
+        for (int shift = 28; shift > 0; shift -= 7) {
+            if ((value >>> shift) != 0) {
+                out.write(((value >>> shift) & 0x7f) | 0x80);
+            }
+        }
+        out.write(value & 0x7f);
+    }
+
+    /**
+     * patch header without secondary compressor nor custom code table.
+     */
+    private static ByteArrayOutputStream header() {
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write(0xd6);
+        patch.write(0xc3);
+        patch.write(0xc4);
+        patch.write(0);
+        patch.write(0);
+        return patch;
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private VcdiffDecoder decoder(byte[] source, byte[] patch, byte[] target, File scratchDirectory) {
+        VcdiffDecoder decoder = new VcdiffDecoder(new ByteBufferSeekableStream(source, true),
+                new ByteArrayInputStream(patch), new ByteBufferSeekableStream(target));
+        decoder.setScratchDirectory(scratchDirectory);
+        return decoder;
+    }
+
+    @Test
+    public void testHugeTargetLength() throws Exception {
+        ByteArrayOutputStream patch = header();
+        // window of 1G target, one RUN of one byte.
+        patch.write(0);
+        write7bitInt(patch, 12);
+        write7bitInt(patch, 1 << 30);
+        patch.write(0);
+        patch.write(1);
+        patch.write(2);
+        patch.write(0);
+        patch.write('a');
+        patch.write(0);
+        patch.write(1);
+
+        File scratchDirectory = folder.newFolder();
+        VcdiffDecoder decoder = decoder(new byte[0], patch.toByteArray(), new byte[0], scratchDirectory);
+        long allocated = allocatedBytes();
+        try {
+            decoder.decode();
+            fail("window not filled");
+        } catch (PatchException e) {
+            assertEquals("Instructions do not fill target window.", e.getMessage());
+        }
+        assertTrue(allocatedBytes() - allocated < 16 * 1024 * 1024);
+        assertEquals(0, scratchDirectory.list().length);
+    }
+
+    @Test
+    public void testHugeDeltaLength() throws Exception {
+        ByteArrayOutputStream patch = header();
+        // window of 1G delta data, patch ends after a few bytes.
+        patch.write(0);
+        write7bitInt(patch, 1 << 30);
+        patch.write(new byte[100]);
+
+        File scratchDirectory = folder.newFolder();
+        VcdiffDecoder decoder = decoder(new byte[0], patch.toByteArray(), new byte[0], scratchDirectory);
+        long allocated = allocatedBytes();
+        try {
+            decoder.decode();
+            fail("patch truncated");
+        } catch (IndexOutOfBoundsException e) {
+            assertTrue(e.getMessage().startsWith("Not enough data in patch"));
+        }
+        assertTrue(allocatedBytes() - allocated < 16 * 1024 * 1024);
+        assertEquals(0, scratchDirectory.list().length);
+    }
+
+    private void assertSpilled(byte[] source, byte[] target, byte[] patch) throws Exception {
+        // scratch file can not be created in a missing directory, so windows should be kept in memory.
+        File missing = new File(folder.getRoot(), "missing");
+        byte[] decoded = new byte[target.length];
+        decoder(source, patch, decoded, missing).decode();
+        assertArrayEquals(target, decoded);
+        VcdiffDecoder decoder = decoder(source, patch, new byte[target.length], missing);
+        decoder.setMaxWindowMemory(16 * 1024);
+        try {
+            decoder.decode();
+            fail("windows not spilled to scratch file");
+        } catch (IOException e) {
+            // expected
+        }
+
+        File scratchDirectory = folder.newFolder();
+        for (int mode = 0; mode < 3; mode++) {
+            decoded = new byte[target.length];
+            decoder = decoder(source, patch, decoded, scratchDirectory);
+            decoder.setMaxWindowMemory(16 * 1024);
+            if (mode == 0) {
+                decoder.decode();
+            } else if (mode == 1) {
+                decoder.decode(executor, 4);
+            } else {
+                decoder.decodePipelined(executor, 3);
+            }
+            assertArrayEquals(target, decoded);
+            assertEquals(0, scratchDirectory.list().length);
+        }
+    }
+
+    @Test
+    public void testTargetSpill() throws Exception {
+        byte[] source = random(1, 300000);
+        byte[] target = mutate(source, 2);
+        // windows are mostly COPY, delta data is small while target windows are larger than the budget.
+        assertSpilled(source, target, encode(source, target, 64 * 1024));
+    }
+
+    @Test
+    public void testDeltaSpill() throws Exception {
+        byte[] source = random(3, 1000);
+        byte[] target = random(4, 300000);
+        // windows are mostly ADD, delta data is larger than the budget too.
+        assertSpilled(source, target, encode(source, target, 64 * 1024));
+    }
+
+    @Test
+    public void testSpillError() throws Exception {
+        byte[] source = random(5, 1000);
+        byte[] target = random(6, 300000);
+        byte[] patch = encode(source, target, 64 * 1024);
+        // cut the last window.
+        byte[] truncated = Arrays.copyOf(patch, patch.length - 10);
+        File scratchDirectory = folder.newFolder();
+        VcdiffDecoder decoder = decoder(source, truncated, new byte[target.length], scratchDirectory);
+        decoder.setMaxWindowMemory(16 * 1024);
+        try {
+            decoder.decode();
+            fail("patch truncated");
+        } catch (IndexOutOfBoundsException e) {
+            assertTrue(e.getMessage().startsWith("Not enough data in patch"));
+        }
+        assertEquals(0, scratchDirectory.list().length);
+    }
+}
@@ -0,0 +1,132 @@
+package net.dongliu.jvcdiff.vcdiff.io;
+
+import net.dongliu.jvcdiff.vcdiff.VcdiffDecoder;
+import net.dongliu.jvcdiff.vcdiff.VcdiffEncoder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author dongliu
+ */
+public class MappedFileSeekableStreamTest {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] random(long seed, int length) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(SeekableStream stream) throws Exception {
+        byte[] data = new byte[(int) stream.length()];
+        IOUtils.readFully(stream, data, 0, data.length);
+        return data;
+    }
+
+    @Test
+    public void testEvictedChunksUnmapped() throws Exception {
+        byte[] data = random(1, 64 * CHUNK_SIZE);
+        File target = folder.newFile();
+        RandomAccessFile file = new RandomAccessFile(target, "rw");
+        MappedFileSeekableStream stream = new MappedFileSeekableStream(file, CHUNK_SIZE, CHUNK_SIZE);
+        try {
+            stream.write(data, 0, 3 * CHUNK_SIZE);
+            // slices in one chunk and across chunks, taken before their chunks are evicted.
+            stream.seek(100);
+            SeekableStream inChunk = stream.slice(1000);
+            stream.seek(CHUNK_SIZE - 10);
+            SeekableStream acrossChunks = stream.slice(CHUNK_SIZE + 20);
+            stream.seek(3 * CHUNK_SIZE);
+            for (int pos = 3 * CHUNK_SIZE; pos < data.length; pos += 1000) {
+                stream.write(data, pos, Math.min(1000, data.length - pos));
+                assertTrue(stream.mappedChunks() <= 4);
+            }
+            assertArrayEquals(Arrays.copyOfRange(data, 100, 1100), readAll(inChunk));
+            assertArrayEquals(Arrays.copyOfRange(data, CHUNK_SIZE - 10, 2 * CHUNK_SIZE + 10),
+                    readAll(acrossChunks));
+            assertTrue(stream.mappedChunks() <= 4);
+
+            stream.seek(0);
+            assertArrayEquals(data, readAll(stream.slice(data.length)));
+        } finally {
+            stream.close();
+        }
+        assertEquals(data.length, target.length());
+    }
+
+    @Test
+    public void testWriteViewKeptMapped() throws Exception {
+        byte[] data = random(2, 16 * CHUNK_SIZE);
+        RandomAccessFile file = new RandomAccessFile(folder.newFile(), "rw");
+        MappedFileSeekableStream stream = new MappedFileSeekableStream(file, 32 * CHUNK_SIZE, CHUNK_SIZE);
+        try {
+            stream.write(data, 0, data.length);
+            ByteBuffer view = stream.mapForWrite(CHUNK_SIZE);
+            // reads of all earlier chunks evict the chunk of the view, it is unmapped on commit.
+            stream.seek(0);
+            SeekableStream slice = stream.slice(data.length);
+            stream.seek(data.length);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            for (int i = 0; i < 16; i++) {
+                IOUtils.readFully(slice, chunk, 0, CHUNK_SIZE);
+                view.put(chunk, 0, CHUNK_SIZE / 16);
+            }
+            assertTrue(stream.mappedChunks() <= 5);
+            stream.commitWrite(CHUNK_SIZE);
+            assertTrue(stream.mappedChunks() <= 4);
+            assertEquals(data.length + CHUNK_SIZE, stream.length());
+
+            stream.seek(data.length);
+            byte[] written = readAll(stream.slice(CHUNK_SIZE));
+            for (int i = 0; i < 16; i++) {
+                assertArrayEquals(Arrays.copyOfRange(data, i * CHUNK_SIZE, i * CHUNK_SIZE + CHUNK_SIZE / 16),
+                        Arrays.copyOfRange(written, i * CHUNK_SIZE / 16, (i + 1) * CHUNK_SIZE / 16));
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        // windows copy from target data before them, read back through evicted chunks.
+        byte[] block = random(3, 10000);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            data.write(block, 0, block.length);
+            data.write(random(4 + i, 500), 0, 500);
+        }
+        byte[] target = data.toByteArray();
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        VcdiffEncoder encoder = new VcdiffEncoder(null, new ByteArrayInputStream(target), patch);
+        encoder.setWindowSize(CHUNK_SIZE * 4);
+        encoder.encode();
+        assertTrue(patch.size() < target.length / 4);
+
+        RandomAccessFile file = new RandomAccessFile(folder.newFile(), "rw");
+        MappedFileSeekableStream stream = new MappedFileSeekableStream(file, target.length / 2, CHUNK_SIZE * 16);
+        try {
+            new VcdiffDecoder(null, new ByteArrayInputStream(patch.toByteArray()), stream).decode();
+            assertTrue(stream.mappedChunks() <= 4);
+            stream.seek(0);
+            assertArrayEquals(target, readAll(stream.slice(target.length)));
+        } finally {
+            stream.close();
+        }
+    }
+}